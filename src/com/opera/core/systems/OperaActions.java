@@ -0,0 +1,72 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.scope.services.IOperaExec;
+
+import org.openqa.selenium.interactions.Actions;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A builder for composite actions which are performed as one batch.  All key presses and mouse
+ * actions of the composite action are sent to Opera in order without waiting for each one to be
+ * acknowledged, and the acknowledgements are waited for once at the end.  The input events of a
+ * drag-and-drop or a chorded key press thus no longer wait for each other, although finding the
+ * position of an element to move the mouse to still costs a round-trip of its own.
+ *
+ * Example usage:
+ *
+ * <pre><code>
+ *   new OperaActions(driver).dragAndDrop(source, target).perform();
+ * </code></pre>
+ */
+public class OperaActions extends Actions {
+
+  private static final Logger logger = Logger.getLogger(OperaActions.class.getName());
+
+  private final IOperaExec exec;
+
+  public OperaActions(OperaDriver driver) {
+    super(driver.getKeyboard(), driver.getMouse());
+    exec = driver.getExecService();
+  }
+
+  @Override
+  public void perform() {
+    exec.startBatch();
+    boolean performed = false;
+
+    try {
+      super.perform();
+      performed = true;
+    } finally {
+      if (performed) {
+        exec.finishBatch();
+      } else {
+        // Do not hide the exception which is already on its way up
+        try {
+          exec.finishBatch();
+        } catch (RuntimeException e) {
+          logger.log(Level.FINE, "Batch failed after an action could not be performed", e);
+        }
+      }
+    }
+  }
+
+}
@@ -37,6 +37,7 @@ import com.opera.core.systems.scope.services.IEcmaScriptDebugger;
 import com.opera.core.systems.scope.services.IOperaExec;
 import com.opera.core.systems.scope.services.IWindowManager;
 import com.opera.core.systems.scope.services.ums.CoreUtils;
+import com.opera.core.systems.scope.stp.StpReactor;
 
 import org.openqa.selenium.*;
 import org.openqa.selenium.internal.WrapsElement;
@@ -47,6 +48,7 @@ import org.openqa.selenium.remote.RemoteLogs;
 import org.openqa.selenium.remote.RemoteWebDriver;
 import org.openqa.selenium.support.ui.Duration;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -58,6 +60,7 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 
@@ -118,6 +121,13 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
   protected Set<Integer> objectIds = new HashSet<Integer>();
   private int assignedWindowIds = 0;
 
+  /**
+   * Name of the hidden global object the results of asynchronous scripts are stored on, keyed by
+   * the token of the script, until we fetch them.
+   */
+  private static final String ASYNC_SCRIPT_RESULTS = "__webdriver_async";
+  private final AtomicInteger asyncScriptTokens = new AtomicInteger();
+
   protected final Logger logger = Logger.getLogger(getClass().getName());
   private FileHandler logFile = null;
 
@@ -205,16 +215,21 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
     // Get product from Opera
     settings.setProduct(utils().getProduct());
 
-    // Enable popups for testing purposes
-    preferences().set("User Prefs", "Ignore Unrequested Popups", false);
+    preferences().startBatch();
+    try {
+      // Enable popups for testing purposes
+      preferences().set("User Prefs", "Ignore Unrequested Popups", false);
 
-    // Setting proxy settings in browser
-    setProxyPrefs(settings.getProxy());
+      // Setting proxy settings in browser
+      setProxyPrefs(settings.getProxy());
 
-    // Mobile needs to be able to autofocus elements for form input currently.  This is an ugly
-    // workaround which should get solved by implementing a standalone bream Scope service.
-    if (utils().getProduct().is(MOBILE)) {
-      preferences().set("User Prefs", "Allow Autofocus Form Element", true);
+      // Mobile needs to be able to autofocus elements for form input currently.  This is an ugly
+      // workaround which should get solved by implementing a standalone bream Scope service.
+      if (utils().getProduct().is(MOBILE)) {
+        preferences().set("User Prefs", "Allow Autofocus Form Element", true);
+      }
+    } finally {
+      preferences().finishBatch();
     }
   }
 
@@ -263,6 +278,7 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
     versions.put("cookie-manager", "1.0");
     versions.put("prefs", "1.0");
     versions.put("selftest", "1.1");
+    versions.put("console-logger", "2.0");
     return versions.build();
   }
 
@@ -271,9 +287,15 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
    */
   private void createScopeServices() {
     try {
+      StpReactor reactor = null;
+      if (settings.getReactorThreads() > 0) {
+        reactor = StpReactor.getShared(settings.getReactorThreads());
+      }
+
       services = new ScopeServices(getRequiredServices(),
                                    settings.getPort(),
-                                   !settings.autostart());
+                                   !settings.autostart(),
+                                   reactor);
       services.startStpThread();
     } catch (IOException e) {
       throw new WebDriverException(e);
@@ -310,6 +332,34 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
     }
   }
 
+  /**
+   * Brings the attached Opera back to a clean state without restarting it, so that the driver can
+   * be handed out again by {@link OperaDriverPool}.  All windows are closed and a new one is
+   * opened, cookies and other private data are cleared, and the given preferences are restored.
+   *
+   * @param preferences a snapshot of the preferences to restore, as taken by {@link
+   *                    OperaScopePreferences#snapshot()}
+   */
+  protected void reset(Map<OperaScopePreferences.ScopePreference, String> preferences) {
+    gc();
+    exec.releaseKeys();
+
+    windowManager.closeAllWindows();
+    windowManager.createWindow();
+    windowManager.resetWindowsList();
+    windowManager.findDriverWindow();
+    windowManager.filterActiveWindow();
+    debugger.resetRuntimesList();
+    switchTo().defaultContent();
+
+    if (cookieManager != null) {
+      cookieManager.removeAllCookies();
+    }
+    utils().clearPrivateData(PrivateData.ALL);
+
+    preferences().restore(preferences);
+  }
+
   public void get(String url) {
     get(url, OperaIntervals.PAGE_LOAD_TIMEOUT.getMs());
   }
@@ -418,48 +468,27 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
     checkNotNull(using, "Cannot find elements when the selector is null");
 
     using = OperaStrings.escapeJsString(using);
-    boolean isAvailable;
-    Integer id;
     String script;
 
     if (el == null) {
       // Search the document
       script =
-          "return " + OperaAtom.FIND_ELEMENT + "({\"" + by + "\": \"" + using + "\"})";
+          "return " + debugger.getAtom(OperaAtom.FIND_ELEMENT) + "({\"" + by + "\": \"" + using
+          + "\"})";
     } else {
       // Search within an element
       script =
-          "return " + OperaAtom.FIND_ELEMENT + "({\"" + by + "\": \"" + using
+          "return " + debugger.getAtom(OperaAtom.FIND_ELEMENT) + "({\"" + by + "\": \"" + using
           + "\"}, locator)";
     }
 
-    if (el == null) {
-      id = debugger.getObject(script);
-    } else {
-      id = debugger.executeScriptOnObject(script, el.getObjectId());
-    }
-
-    isAvailable = (id != null);
+    Integer id = debugger.findElement(script, (el == null) ? null : el.getObjectId());
 
-    if (isAvailable) {
-      String error =
-          debugger.callFunctionOnObject("return (locator instanceof Error) ? locator.message : ''",
-                                        id);
-      if (!error.isEmpty()) {
-        throw new InvalidSelectorException(error);
-      }
-
-      Boolean isStale =
-          Boolean.valueOf(debugger.callFunctionOnObject("locator.parentNode == undefined", id));
-
-      if (isStale) {
-        throw new StaleElementReferenceException("This element is no longer part of DOM");
-      }
-
-      return new OperaWebElement(this, id);
-    } else {
+    if (id == null) {
       throw new NoSuchElementException("Cannot find element(s) with " + by);
     }
+
+    return new OperaWebElement(this, id);
   }
 
   public List<WebElement> findElements(By by) {
@@ -479,7 +508,7 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
 
     Integer id;
 
-    long start = System.currentTimeMillis();
+    Poller poller = new Poller(OperaIntervals.IMPLICIT_WAIT.getMs());
     int count = 0;
 
     List<WebElement> elements;
@@ -488,11 +517,12 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
     if (el == null) {
       // Search in document
       script =
-          "return " + OperaAtom.FIND_ELEMENTS + "({\"" + by + "\": \"" + using + "\"})";
+          "return " + debugger.getAtom(OperaAtom.FIND_ELEMENTS) + "({\"" + by + "\": \"" + using
+          + "\"})";
     } else {
       // Search within an element
       script =
-          "return " + OperaAtom.FIND_ELEMENTS + "({\"" + by + "\": \"" + using
+          "return " + debugger.getAtom(OperaAtom.FIND_ELEMENTS) + "({\"" + by + "\": \"" + using
           + "\"}, locator)";
     }
 
@@ -516,9 +546,7 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
         count = elements.size();
       }
 
-      if (count == 0 && hasTimeRemaining(start)) {
-        sleep(OperaIntervals.IMPLICIT_WAIT.getMs());
-      } else {
+      if (count != 0 || !poller.await()) {
         break;
       }
 
@@ -677,7 +705,7 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
 
     // TODO: Implement need to find a way to link an element to a runtime
     public WebDriver frame(WebElement frameElement) {
-      String script = "return " + OperaAtom.GET_FRAME_INDEX + "(locator)";
+      String script = "return " + debugger.getAtom(OperaAtom.GET_FRAME_INDEX) + "(locator)";
       // PageObject fields are wrapped by PageFactory
       while (frameElement instanceof WrapsElement) {
         frameElement = ((WrapsElement) frameElement).getWrappedElement();
@@ -914,7 +942,23 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
   // TODO: CORE-39436 areas outside of the current viewport is black, this is a problem with Opera not OperaDriver
   public <X> X getScreenshotAs(OutputType<X> target) throws WebDriverException {
     OperaWebElement body = (OperaWebElement) findElementByTagName("body");
-    return target.convertFromPngBytes(body.saveScreenshot(0).getPng());
+    ScreenShotReply reply = body.saveScreenshot(0);
+
+    // Write files straight from the reply rather than through a copy of the image
+    if (target == OutputType.FILE) {
+      try {
+        File file = File.createTempFile("screenshot", ".png");
+        file.deleteOnExit();
+        reply.writePng(file);
+        @SuppressWarnings("unchecked")
+        X result = (X) file;
+        return result;
+      } catch (IOException e) {
+        throw new WebDriverException("Failed to write screenshot: " + e.getMessage());
+      }
+    }
+
+    return target.convertFromPngBytes(reply.getPng());
   }
 
   public Object executeScript(String script, Object... args) {
@@ -939,8 +983,54 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
     return object;
   }
 
+  /**
+   * Executes an asynchronous script.  The script is passed a callback as its last argument, and
+   * its result is the value the callback is invoked with.
+   *
+   * When the console-logger service is available the callback notifies us with a console message,
+   * so we wait for that rather than checking whether the callback has been invoked over and over.
+   * The result is then fetched with a second evaluation.
+   *
+   * @param script the script to execute
+   * @param args   the arguments to pass to the script
+   * @return the value the script's callback was invoked with
+   * @throws TimeoutException if the callback is not invoked within {@link
+   *                          OperaIntervals#SCRIPT_TIMEOUT}
+   */
   public Object executeAsyncScript(String script, Object... args) {
-    throw new UnsupportedOperationException();
+    String token = String.valueOf(asyncScriptTokens.incrementAndGet());
+    long timeout = OperaIntervals.SCRIPT_TIMEOUT.getMs();
+    String results = "window['" + ASYNC_SCRIPT_RESULTS + "']";
+
+    executeScript(
+        "var w=window,s=w['" + ASYNC_SCRIPT_RESULTS + "'],k='" + token + "',"
+        + "a=(typeof arguments!='undefined')?Array.prototype.slice.call(arguments):[];"
+        + "if(!s){s={};try{Object.defineProperty(w,'" + ASYNC_SCRIPT_RESULTS + "',{value:s});}"
+        + "catch(e){w['" + ASYNC_SCRIPT_RESULTS + "']=s;}}"
+        + "a.push(function(r){if(!(k in s)){s[k]=r;"
+        + "opera.postError('" + ScopeServices.SCRIPT_CALLBACK_PREFIX + "'+k);}});"
+        + "(function(){" + script + "\n}).apply(w,a);", args);
+
+    if (services.isScriptCallbackAvailable()) {
+      try {
+        services.waitForScriptCallback(token, timeout);
+      } catch (ResponseNotReceivedException e) {
+        throw new TimeoutException(
+            "Timed out waiting for asynchronous script result after " + timeout + " ms");
+      }
+    } else {
+      Poller poller = new Poller(timeout);
+      while (!Boolean.TRUE.equals(
+          executeScript("var s=" + results + ";return !!s&&('" + token + "' in s);"))) {
+        if (!poller.await()) {
+          throw new TimeoutException(
+              "Timed out waiting for asynchronous script result after " + timeout + " ms");
+        }
+      }
+    }
+
+    return executeScript("var s=" + results + ",r=s['" + token + "'];delete s['" + token + "'];"
+                         + "return r;");
   }
 
   public Keyboard getKeyboard() {
@@ -1131,16 +1221,21 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
     if (settings.useIdle() && services.isOperaIdleAvailable()) {
       services.waitForOperaIdle(OperaIntervals.OPERA_IDLE_TIMEOUT.getMs());
     } else {
-      // Sometimes we get here before the next page has even *started* loading, and so return too
-      // quickly. This sleep is enough to make sure readyState has been set to "loading".
-      sleep(5);
-
-      long endTime = System.currentTimeMillis() + OperaIntervals.PAGE_LOAD_TIMEOUT.getMs();
+      Poller poller = new Poller(OperaIntervals.PAGE_LOAD_TIMEOUT.getMs());
+
+      // Ready state events tell us when a document loaded because of the preceding action has
+      // finished loading.  If no document starts loading shortly after the action, either the
+      // action did not navigate or we do not get the events (the ecmascript-debugger service does
+      // not send them).  If one does but is not loaded in time, the document we followed may have
+      // been replaced or been a frame.  Either way, fall back to looking at the current document
+      // for whatever time is left.
+      if (services.waitForLoad(OperaIntervals.PAGE_LOAD_START_TIMEOUT.getMs(),
+                               OperaIntervals.PAGE_LOAD_TIMEOUT.getMs())) {
+        return;
+      }
 
       while (!"complete".equals(debugger.executeJavascript("return document.readyState"))) {
-        if (System.currentTimeMillis() < endTime) {
-          sleep(OperaIntervals.POLL_INTERVAL.getMs());
-        } else {
+        if (!poller.await()) {
           throw new ResponseNotReceivedException("No response in a timely fashion");
         }
       }
@@ -1150,15 +1245,16 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
   /**
    * Implicitly wait for an element to become visible.
    *
-   * Essentially it polls the client every {@link OperaIntervals#POLL_INTERVAL} until {@link
-   * OperaIntervals#IMPLICIT_WAIT} is reached for callable <code>condition</code> to be true.
+   * Essentially it polls the client until {@link OperaIntervals#IMPLICIT_WAIT} is reached for
+   * callable <code>condition</code> to be true.  Between attempts it waits for activity in Opera
+   * which may have changed the document, see {@link Poller}.
    *
    * @param condition a callable implementation
    * @param <X>       computes a result, or throws an exception if unable to do so
    * @return a non-null value if condition is met within implicit wait timeout, null otherwise
    */
   protected <X> X implicitlyWaitFor(Callable<X> condition) {
-    long end = System.currentTimeMillis() + OperaIntervals.IMPLICIT_WAIT.getMs();
+    Poller poller = new Poller(OperaIntervals.IMPLICIT_WAIT.getMs());
     Exception lastException = null;
 
     do {
@@ -1177,9 +1273,7 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
       if (toReturn != null) {
         return toReturn;
       }
-
-      sleep(OperaIntervals.POLL_INTERVAL.getMs());
-    } while (System.currentTimeMillis() < end);
+    } while (poller.await());
 
     if (lastException != null) {
       if (lastException instanceof RuntimeException) {
@@ -1206,8 +1300,46 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
 
   // Following methods are used internally:
 
-  private boolean hasTimeRemaining(long start) {
-    return System.currentTimeMillis() - start < OperaIntervals.IMPLICIT_WAIT.getMs();
+  /**
+   * Paces repeated attempts at a condition on the document.  Rather than sleeping a fixed interval
+   * between attempts, it waits for Opera to report activity which may have changed the document,
+   * such as a ready state change, so that the condition is re-checked as soon as it may have become
+   * true.  Scripts may also change the document without Opera telling us, so if nothing happens the
+   * interval between attempts backs off from {@link OperaIntervals#POLL_INTERVAL} to {@link
+   * OperaIntervals#POLL_INTERVAL_LIMIT}.
+   */
+  private class Poller {
+
+    private final long end;
+    private long seen;
+    private long interval = OperaIntervals.POLL_INTERVAL.getMs();
+
+    public Poller(long timeout) {
+      end = System.currentTimeMillis() + timeout;
+      seen = services.getActivity();
+    }
+
+    /**
+     * Waits until the next attempt should be made.
+     *
+     * @return true if the next attempt should be made, false if time has run out
+     */
+    public boolean await() {
+      long remaining = end - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+
+      if (services.waitForActivity(seen, Math.min(interval, remaining))) {
+        interval = OperaIntervals.POLL_INTERVAL.getMs();
+      } else {
+        interval = Math.min(interval * 2, OperaIntervals.POLL_INTERVAL_LIMIT.getMs());
+      }
+
+      seen = services.getActivity();
+      return true;
+    }
+
   }
 
   /**
@@ -1227,7 +1359,7 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
   private List<WebElement> findMultipleElements(String script, String type) {
     Integer id;
 
-    long start = System.currentTimeMillis();
+    Poller poller = new Poller(OperaIntervals.IMPLICIT_WAIT.getMs());
     int count = 0;
 
     List<WebElement> elements;
@@ -1240,9 +1372,7 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
         count = elements.size();
       }
 
-      if (count == 0 && hasTimeRemaining(start)) {
-        sleep(OperaIntervals.POLL_INTERVAL.getMs());
-      } else {
+      if (count != 0 || !poller.await()) {
         break;
       }
 
@@ -1256,18 +1386,14 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
   }
 
   private WebElement findSingleElement(String script, String type) {
-    long start = System.currentTimeMillis();
+    Poller poller = new Poller(OperaIntervals.IMPLICIT_WAIT.getMs());
     boolean isAvailable;
     Integer id;
 
     do {
       id = debugger.getObject(script);
       isAvailable = (id != null);
-
-      if (!isAvailable) {
-        sleep(OperaIntervals.POLL_INTERVAL.getMs());
-      }
-    } while (!isAvailable && hasTimeRemaining(start));
+    } while (!isAvailable && poller.await());
 
     if (isAvailable) {
       Boolean isStale =
@@ -1283,12 +1409,4 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
     }
   }
 
-  private static void sleep(long ms) {
-    try {
-      Thread.sleep(ms);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-    }
-  }
-
 }
\ No newline at end of file
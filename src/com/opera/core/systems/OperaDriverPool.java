@@ -0,0 +1,230 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.opera.core.systems.preferences.OperaScopePreferences.ScopePreference;
+import com.opera.core.systems.scope.internal.OperaIntervals;
+
+import org.openqa.selenium.WebDriverException;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A pool of launched and connected Opera instances.  Starting Opera and setting up the Scope
+ * services takes seconds, so rather than creating a new {@link OperaDriver} for every test, drivers
+ * can be acquired from the pool and released back to it when done.
+ *
+ * The pool launches instances in the background until it holds the requested number of idle
+ * drivers.  When a driver is released it is reset by closing all of its windows, clearing cookies
+ * and other private data and restoring the preferences it had when it was launched.  Drivers which
+ * have lost their connection to Opera, for instance because they were quit, are discarded.
+ *
+ * Example usage:
+ *
+ * <pre><code>
+ *   OperaDriverPool pool = new OperaDriverPool(2);
+ *   OperaDriver driver = pool.acquire();
+ *   try {
+ *     driver.get("http://example.com/");
+ *   } finally {
+ *     pool.release(driver);
+ *   }
+ *   pool.shutdown();
+ * </code></pre>
+ */
+public class OperaDriverPool {
+
+  private final Logger logger = Logger.getLogger(getClass().getName());
+
+  private final Supplier<OperaSettings> settings;
+  private final int size;
+  private final BlockingQueue<OperaDriver> idle;
+  private final ThreadPoolExecutor launcher;
+  private final AtomicInteger launching = new AtomicInteger();
+  private volatile boolean shutdown = false;
+
+  /**
+   * The preferences of every driver belonging to the pool, as they were right after launch.
+   */
+  private final Map<OperaDriver, Map<ScopePreference, String>> preferences =
+      new ConcurrentHashMap<OperaDriver, Map<ScopePreference, String>>();
+
+  /**
+   * Creates a pool of drivers using the default settings, each with a fresh profile and a random
+   * port.
+   *
+   * @param size the number of idle drivers to keep
+   */
+  public OperaDriverPool(int size) {
+    this(new Supplier<OperaSettings>() {
+      public OperaSettings get() {
+        return new OperaSettings();
+      }
+    }, size);
+  }
+
+  /**
+   * Creates a pool of drivers.  Since the drivers run side by side, the supplier must return
+   * settings for a separate Opera instance every time, with its own port and profile.
+   *
+   * @param settings supplies the settings of each driver
+   * @param size     the number of idle drivers to keep
+   */
+  public OperaDriverPool(Supplier<OperaSettings> settings, int size) {
+    checkArgument(size > 0, "The pool must hold at least one driver");
+
+    this.settings = settings;
+    this.size = size;
+    idle = new LinkedBlockingQueue<OperaDriver>(size);
+    launcher = new ThreadPoolExecutor(size, size, 1, TimeUnit.SECONDS,
+                                      new LinkedBlockingQueue<Runnable>(),
+                                      new ThreadFactoryBuilder().setNameFormat("opera-pool-%d")
+                                          .setDaemon(true).build());
+    launcher.allowCoreThreadTimeOut(true);
+
+    fill();
+  }
+
+  /**
+   * Gets a driver from the pool.  If no idle driver is available, a new one is launched, which
+   * blocks until Opera has started.  Either way, a replacement is launched in the background.
+   *
+   * @return a driver for exclusive use until it is released
+   */
+  public OperaDriver acquire() {
+    checkState(!shutdown, "The pool has been shut down");
+
+    OperaDriver driver = idle.poll();
+    if (driver == null) {
+      driver = launch();
+    }
+
+    fill();
+    return driver;
+  }
+
+  /**
+   * Returns a driver to the pool.  The driver is reset so that it can be acquired again, or quit if
+   * it can not be reset or the pool is already full.
+   *
+   * @param driver a driver acquired from this pool
+   */
+  public void release(OperaDriver driver) {
+    Map<ScopePreference, String> snapshot = preferences.get(driver);
+    checkArgument(snapshot != null, "Driver does not belong to this pool");
+
+    if (!shutdown && driver.getScopeServices().isConnected()) {
+      try {
+        driver.reset(snapshot);
+
+        if (idle.offer(driver)) {
+          // The pool may have been shut down while we were resetting
+          if (shutdown && idle.remove(driver)) {
+            discard(driver);
+          }
+          return;
+        }
+      } catch (WebDriverException e) {
+        logger.warning("Unable to reset Opera, discarding it: " + e.getMessage());
+      }
+    }
+
+    discard(driver);
+    fill();
+  }
+
+  /**
+   * Quits all idle drivers and stops launching new ones.  Drivers which are acquired at this point
+   * are quit when they are released.
+   */
+  public void shutdown() {
+    synchronized (this) {
+      shutdown = true;
+      launcher.shutdown();
+    }
+
+    // Drivers being launched are quit as soon as they are up
+    try {
+      launcher.awaitTermination(OperaIntervals.HANDSHAKE_TIMEOUT.getMs(),
+                                TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (OperaDriver driver = idle.poll(); driver != null; driver = idle.poll()) {
+      discard(driver);
+    }
+  }
+
+  /**
+   * Gets the number of drivers ready to be acquired without waiting.
+   *
+   * @return the number of idle drivers
+   */
+  public int getIdleCount() {
+    return idle.size();
+  }
+
+  /**
+   * Launches drivers in the background until the idle and launching drivers make up the size of the
+   * pool.  Drivers which fail to launch are not retried until the next call.
+   */
+  private synchronized void fill() {
+    while (!shutdown && idle.size() + launching.get() < size) {
+      launching.incrementAndGet();
+      launcher.execute(new Runnable() {
+        public void run() {
+          try {
+            OperaDriver driver = launch();
+            if (shutdown || !idle.offer(driver)) {
+              discard(driver);
+            }
+          } catch (WebDriverException e) {
+            logger.warning("Unable to launch Opera for the pool: " + e.getMessage());
+          } finally {
+            launching.decrementAndGet();
+          }
+        }
+      });
+    }
+  }
+
+  private OperaDriver launch() {
+    OperaDriver driver = new OperaDriver(settings.get());
+    preferences.put(driver, driver.preferences().snapshot());
+    return driver;
+  }
+
+  private void discard(OperaDriver driver) {
+    preferences.remove(driver);
+    driver.quit();
+  }
+
+}
@@ -72,6 +72,7 @@ public class OperaProfile {
   private File directory;
   private File preferenceFile;
   private boolean randomProfile = false;
+  private OperaProfileTemplate template = null;
   private OperaPreferences preferences;
 
   /**
@@ -124,6 +125,17 @@ public class OperaProfile {
     setPreferences(new OperaFilePreferences(preferenceFile));
   }
 
+  /**
+   * Creates a clone of a profile template in the given directory.
+   *
+   * @param profileDirectory the directory the template was cloned into
+   * @param template         the template the profile was cloned from
+   */
+  OperaProfile(File profileDirectory, OperaProfileTemplate template) {
+    this(profileDirectory);
+    this.template = template;
+  }
+
   /**
    * Allows access to the preferences in the current profile.
    *
@@ -158,11 +170,15 @@ public class OperaProfile {
   }
 
   /**
-   * Cleans up the profile.  If the profile was random, it will be deleted.  This method should
-   * typically be called when Opera is shut down.
+   * Cleans up the profile.  If the profile was random, it will be deleted.  If it was cloned from
+   * an {@link OperaProfileTemplate}, its directory is handed back to the template to be reused.
+   * This method should typically be called when Opera is shut down.
    */
   public void cleanUp() {
-    if (randomProfile) {
+    if (template != null) {
+      template.recycle(getDirectory());
+      template = null;  // the directory may be handed out again
+    } else if (randomProfile) {
       TemporaryFilesystem.getDefaultTmpFS().deleteTempDir(getDirectory());
     }
   }
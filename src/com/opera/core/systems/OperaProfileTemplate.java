@@ -0,0 +1,149 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.opera.core.systems.preferences.OperaFilePreferences;
+import com.opera.core.systems.util.WatirUtils;
+
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.io.FileHandler;
+import org.openqa.selenium.io.TemporaryFilesystem;
+
+import java.io.File;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A base profile which is laid out once and cloned for every session, such as a profile with a set
+ * of preferences and extensions in place, or one which Opera has already been started with once.
+ * Each clone is a separate {@link OperaProfile} which Opera is free to write to.
+ *
+ * When a clone is cleaned up its directory is emptied in the background and handed out again for
+ * the next clone, so that neither creating nor deleting profile directories holds up starting or
+ * quitting Opera.
+ *
+ * Example usage:
+ *
+ * <pre>
+ * {@code
+ *   OperaProfile base = new OperaProfile();
+ *   base.preferences().set("User Prefs", "Ignore Unrequested Popups", false);
+ *   OperaProfileTemplate template = new OperaProfileTemplate(base);
+ *
+ *   WebDriver driver = new OperaDriver(template.newProfile());
+ * }
+ * </pre>
+ */
+public class OperaProfileTemplate {
+
+  private static final Logger logger = Logger.getLogger(OperaProfileTemplate.class.getName());
+
+  private static final ExecutorService recycler =
+      new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                             new ThreadFactoryBuilder().setNameFormat("profile-recycler-%d")
+                                 .setDaemon(true).build());
+
+  private final File directory;
+  private final Queue<File> recycled = new ConcurrentLinkedQueue<File>();
+
+  /**
+   * Creates a template from the given profile.  Its preferences are written to its directory, and
+   * the directory should not be changed while the template is in use.
+   *
+   * @param base the profile to clone
+   */
+  public OperaProfileTemplate(OperaProfile base) {
+    if (base.preferences() instanceof OperaFilePreferences) {
+      ((OperaFilePreferences) base.preferences()).write();
+    }
+
+    directory = base.getDirectory();
+  }
+
+  /**
+   * Gets the directory of the base profile.
+   *
+   * @return the directory which is cloned
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Clones the base profile into a recycled directory, or into a new temporary directory if there
+   * is none.  The clone should be cleaned up using {@link OperaProfile#cleanUp()} when Opera has
+   * been shut down.
+   *
+   * @return a new profile with the contents of the base profile
+   */
+  public OperaProfile newProfile() {
+    File clone = recycled.poll();
+    if (clone == null) {
+      clone = TemporaryFilesystem.getDefaultTmpFS().createTempDir("opera", "profile");
+    }
+
+    if (!WatirUtils.copyDirAndFiles(directory, clone)) {
+      throw new WebDriverException("Unable to clone profile " + directory.getPath());
+    }
+
+    return new OperaProfile(clone, this);
+  }
+
+  /**
+   * Empties the directory of a clone in the background and makes it available for the next clone.
+   *
+   * @param clone the directory of a clone made by this template
+   */
+  void recycle(final File clone) {
+    recycler.execute(new Runnable() {
+      public void run() {
+        File[] files = clone.listFiles();
+        if (files == null) {
+          return;
+        }
+
+        for (File file : files) {
+          if (!FileHandler.delete(file)) {
+            logger.warning("Unable to empty profile directory " + clone.getPath());
+            TemporaryFilesystem.getDefaultTmpFS().deleteTempDir(clone);
+            return;
+          }
+        }
+
+        recycled.add(clone);
+      }
+    });
+  }
+
+  /**
+   * Deletes the directories kept for future clones.  Clones which are still in use are not
+   * affected.
+   */
+  public void cleanUp() {
+    for (File clone = recycled.poll(); clone != null; clone = recycled.poll()) {
+      TemporaryFilesystem.getDefaultTmpFS().deleteTempDir(clone);
+    }
+  }
+
+}
@@ -59,6 +59,7 @@ import static com.opera.core.systems.OperaSettings.Capability.PROXY;
 import static com.opera.core.systems.OperaSettings.Capability.BACKEND;
 import static com.opera.core.systems.OperaSettings.Capability.BINARY;
 import static com.opera.core.systems.OperaSettings.Capability.DETACH;
+import static com.opera.core.systems.OperaSettings.Capability.DIRECT_TYPING;
 import static com.opera.core.systems.OperaSettings.Capability.DISPLAY;
 import static com.opera.core.systems.OperaSettings.Capability.HOST;
 import static com.opera.core.systems.OperaSettings.Capability.LAUNCHER;
@@ -69,6 +70,7 @@ import static com.opera.core.systems.OperaSettings.Capability.OPERAIDLE;
 import static com.opera.core.systems.OperaSettings.Capability.PORT;
 import static com.opera.core.systems.OperaSettings.Capability.PRODUCT;
 import static com.opera.core.systems.OperaSettings.Capability.PROFILE;
+import static com.opera.core.systems.OperaSettings.Capability.REACTOR_THREADS;
 import static com.opera.core.systems.runner.launcher.OperaLauncherRunner.LAUNCHER_ENV_VAR;
 import static com.opera.core.systems.scope.internal.OperaDefaults.SERVER_DEFAULT_PORT;
 import static com.opera.core.systems.scope.internal.OperaDefaults.SERVER_DEFAULT_PORT_IDENTIFIER;
@@ -413,6 +415,43 @@ public class OperaSettings {
       }
     },
 
+    /**
+     * (Integer) Number of threads in the STP reactor shared by all drivers in the JVM.  If greater
+     * than 0, the connection to Opera is multiplexed over the shared reactor instead of being given
+     * its own thread, which keeps the thread count down when running many drivers in parallel.
+     * Only the first driver to use the reactor decides its size.  Default is 0 (disabled).
+     *
+     * @since 0.15
+     */
+    REACTOR_THREADS("reactor.threads") {
+      Integer getDefaultValue() {
+        return 0;
+      }
+
+      Integer sanitize(Object threads) {
+        checkNotNull(threads);
+        return Integer.parseInt(String.valueOf(threads));
+      }
+    },
+
+    /**
+     * (Boolean) Whether to type plain text into text fields by setting their value directly and
+     * firing an input event, rather than by sending a key press for every character.  This is much
+     * faster for long texts, but no key events are fired.  Default is false.
+     *
+     * @since 0.15
+     */
+    DIRECT_TYPING("typing.direct") {
+      Boolean getDefaultValue() {
+        return false;
+      }
+
+      Boolean sanitize(Object enabled) {
+        checkNotNull(enabled);
+        return OperaBoolean.parseBoolean(String.valueOf(enabled));
+      }
+    },
+
     /**
      * (String) The product we are using, for example {@link OperaProduct#DESKTOP} or {@link
      * OperaProduct#CORE}.
@@ -1023,6 +1062,47 @@ public class OperaSettings {
     options.get(DETACH).setValue(enabled);
   }
 
+  /**
+   * Gets the number of threads in the STP reactor shared between drivers.  If 0, each driver uses
+   * its own thread for communicating with Opera.
+   *
+   * @return the number of shared reactor threads, or 0 if disabled
+   */
+  public int getReactorThreads() {
+    return (Integer) options.get(REACTOR_THREADS).getValue();
+  }
+
+  /**
+   * Sets the number of threads in the STP reactor shared between drivers.  Only the first driver
+   * to start the shared reactor decides its size.  Set to 0 to give each driver its own thread.
+   *
+   * @param threads the number of shared reactor threads, or 0 to disable
+   */
+  public void setReactorThreads(int threads) {
+    options.get(REACTOR_THREADS).setValue(threads);
+  }
+
+  /**
+   * Whether to type plain text into text fields by setting their value directly, rather than by
+   * sending key presses.
+   *
+   * @return true if plain text is typed directly, false otherwise
+   */
+  public boolean hasDirectTyping() {
+    return (Boolean) options.get(DIRECT_TYPING).getValue();
+  }
+
+  /**
+   * Specifies whether to type plain text into text fields by setting their value directly and
+   * firing an input event, rather than by sending key presses.  No key events are fired when
+   * typing directly.
+   *
+   * @param enabled true to type plain text directly, false to send key presses
+   */
+  public void setDirectTyping(boolean enabled) {
+    options.get(DIRECT_TYPING).setValue(enabled);
+  }
+
   /**
    * Gets rendering backend used.  If null or an empty string, "software" is used by default. This
    * will only be used if using {@link OperaLauncherRunner} (i.e. if {@link #autostart()} and {@link
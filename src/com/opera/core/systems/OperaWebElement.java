@@ -16,10 +16,14 @@ limitations under the License.
 
 package com.opera.core.systems;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import com.opera.core.systems.model.Canvas;
 import com.opera.core.systems.model.ColorResult;
 import com.opera.core.systems.model.OperaColor;
 import com.opera.core.systems.model.ScreenShotReply;
+import com.opera.core.systems.model.ScreenshotDiff;
 import com.opera.core.systems.scope.exceptions.ResponseNotReceivedException;
 import com.opera.core.systems.scope.internal.OperaColors;
 import com.opera.core.systems.scope.internal.OperaKeys;
@@ -42,14 +46,18 @@ import org.openqa.selenium.interactions.internal.Coordinates;
 import org.openqa.selenium.remote.RemoteWebElement;
 import org.openqa.selenium.support.Color;
 
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -73,6 +81,35 @@ public class OperaWebElement extends RemoteWebElement {
    */
   private static final HashMap<Character, String> keysLookup = new HashMap<Character, String>();
 
+  private static final String IS_DISCONNECTED_SCRIPT = "locator.parentNode == undefined";
+
+  /**
+   * Writes screenshots saved in the background to disk, one at a time and in order.  The thread
+   * goes away when there is nothing to write, so it does not keep the JVM alive, but pending writes
+   * are finished before the JVM exits.
+   */
+  private static final ExecutorService screenshotWriter =
+      new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                             new ThreadFactoryBuilder().setNameFormat("screenshot-writer-%d")
+                                 .build());
+
+  /**
+   * Types of input elements which {@link #DIRECT_TYPING_SCRIPT} may be used on.
+   */
+  private static final Set<String> TEXT_INPUT_TYPES =
+      ImmutableSet.of("", "text", "password", "search", "email", "url", "tel");
+
+  /**
+   * Appends text to the value of a text field, like typing it at the end would, and fires an input
+   * event.  Used instead of key presses if {@link OperaSettings#hasDirectTyping()} is enabled.  The
+   * placeholder is the text as an ECMAScript string literal.
+   */
+  private static final String DIRECT_TYPING_SCRIPT =
+      "if(locator.readOnly){return;}var t=%s,v=locator.value,m=locator.maxLength;"
+      + "if(m>=0&&v.length+t.length>m){t=t.substring(0,Math.max(m-v.length,0));}"
+      + "locator.value=v+t;var e=locator.ownerDocument.createEvent('Events');"
+      + "e.initEvent('input',true,false);locator.dispatchEvent(e);";
+
   /**
    * @param parent   driver that this element belongs to
    * @param objectId the EcmaScript object ID of this element
@@ -84,6 +121,7 @@ public class OperaWebElement extends RemoteWebElement {
     debugger = parent.getScriptDebugger();
     execService = parent.getExecService();
     runtimeId = debugger.getRuntimeId();
+    debugger.trackObject(this, objectId);
   }
 
   /**
@@ -123,7 +161,7 @@ public class OperaWebElement extends RemoteWebElement {
     parent.getScopeServices().captureOperaIdle();
 
     if (getTagName().equals("OPTION")) {
-      callMethod("return " + OperaAtom.CLICK + "(locator)");
+      callMethod("return " + debugger.getAtom(OperaAtom.CLICK) + "(locator)");
     } else {
       parent.getMouse().click(getCoordinates());
     }
@@ -159,15 +197,13 @@ public class OperaWebElement extends RemoteWebElement {
   }
 
   public String getAttribute(String attribute) {
-    assertElementNotStale();
-
     // TODO(andreastt): Investigate whether this check is still needed
     if (attribute.equalsIgnoreCase("value")) {
-      return callMethod("if(/^input|select|option|textarea$/i.test(locator.nodeName)){"
-                        + "return locator.value;" + "}" + "return locator.textContent;");
+      return callMethodIfNotStale("if(/^input|select|option|textarea$/i.test(locator.nodeName)){"
+                                  + "return locator.value;" + "}" + "return locator.textContent;");
     } else {
-      return callMethod("return " + OperaAtom.GET_ATTRIBUTE + "(locator, '" + attribute
-                        + "')");
+      return callMethodIfNotStale("return " + debugger.getAtom(OperaAtom.GET_ATTRIBUTE)
+                                  + "(locator, '" + attribute + "')");
     }
   }
 
@@ -176,30 +212,29 @@ public class OperaWebElement extends RemoteWebElement {
   }
 
   public String getText() {
-    assertElementNotStale();
-    return callMethod("return " + OperaAtom.GET_TEXT + "(locator)");
+    return callMethodIfNotStale("return " + debugger.getAtom(OperaAtom.GET_TEXT) + "(locator)");
   }
 
   public boolean isDisplayed() {
-    assertElementNotStale();
-    return (Boolean) evaluateMethod("return " + OperaAtom.IS_DISPLAYED + "(locator)");
+    return Boolean.valueOf(callMethodIfNotStale(
+        "return " + debugger.getAtom(OperaAtom.IS_DISPLAYED) + "(locator)"));
   }
 
   public boolean isEnabled() {
-    assertElementNotStale();
-    return (Boolean) evaluateMethod("return " + OperaAtom.IS_ENABLED + "(locator)");
+    return Boolean.valueOf(callMethodIfNotStale(
+        "return " + debugger.getAtom(OperaAtom.IS_ENABLED) + "(locator)"));
   }
 
   public boolean isSelected() {
-    assertElementNotStale();
-    return (Boolean) evaluateMethod("return " + OperaAtom.IS_SELECTED + "(locator)");
+    return Boolean.valueOf(callMethodIfNotStale(
+        "return " + debugger.getAtom(OperaAtom.IS_SELECTED) + "(locator)"));
   }
 
   public void clear() {
     verifyCanInteractWithElement();
 
     if (isEnabled() && !Boolean.valueOf(getAttribute("readonly"))) {
-      executeMethod("return " + OperaAtom.CLEAR + "(locator)");
+      executeMethod("return " + debugger.getAtom(OperaAtom.CLEAR) + "(locator)");
     }
   }
 
@@ -237,56 +272,51 @@ public class OperaWebElement extends RemoteWebElement {
       }
     }
 
+    if (parent.settings.hasDirectTyping() && isPlainText(keysToSend) && isTextField()
+        && !execService.keyIsPressed(OperaKeys.SHIFT.getValue())
+        && !execService.keyIsPressed(OperaKeys.CONTROL.getValue())) {
+      StringBuilder text = new StringBuilder();
+      for (CharSequence seq : keysToSend) {
+        text.append(seq);
+      }
+
+      executeMethod(String.format(DIRECT_TYPING_SCRIPT, toJsString(text.toString())));
+      return;
+    }
+
     // This code is a bit ugly. Because "special" keys can be sent either as an individual
     // argument, or in the middle of a string of "normal" characters, we have to loop through the
-    // string and check each against a list of special keys.
+    // string and check each against a list of special keys.  Runs of normal characters are typed
+    // with a single type() call.
+
+    StringBuilder text = new StringBuilder();
 
     parent.getScopeServices().captureOperaIdle();
     for (CharSequence seq : keysToSend) {
       if (seq instanceof Keys) {
-        String key = OperaKeys.get(((Keys) seq).name());
-        // Check if this is a key we hold down, and haven't already pressed, and press, but don't
-        // release it. That's done at the end of this method.
-        if (holdKeys.contains(key) && !heldKeys.contains(key) && !execService.keyIsPressed(key)) {
-          execService.key(key, false);
-          heldKeys.add(key);
-        } else if (key.equals("null")) {
-          for (String hkey : heldKeys) {
-            execService.key(hkey, true);
-          }
-        } else {
-          execService.key(key);
-        }
+        type(text);
+        pressKey(OperaKeys.get(((Keys) seq).name()), holdKeys, heldKeys);
       } else if (seq.toString().equals("\n")) {
+        type(text);
         execService.key("enter");
       } else {
         // We need to check each character to see if it is a "special" key
         for (int i = 0; i < seq.length(); i++) {
-          Character c = seq.charAt(i);
+          char c = seq.charAt(i);
           String keyName = charToKeyName(c);
 
-          // Buffer normal keys for a single type() call
           if (keyName == null) {
-            execService.type(c.toString());
+            text.append(c);
           } else {
-            String key = OperaKeys.get(keyName);
-            // TODO: Code repeated from above
-            if (holdKeys.contains(key) && !heldKeys.contains(key) && !execService
-                .keyIsPressed(key)) {
-              execService.key(key, false);
-              heldKeys.add(key);
-            } else if (key.equals("null")) {
-              for (String hkey : heldKeys) {
-                execService.key(hkey, true);
-              }
-            } else {
-              execService.key(key);
-            }
+            type(text);
+            pressKey(OperaKeys.get(keyName), holdKeys, heldKeys);
           }
         }
       }
     }
 
+    type(text);
+
     if (heldKeys.size() > 0) {
       for (String key : heldKeys) {
         execService.key(key, true);
@@ -303,6 +333,94 @@ public class OperaWebElement extends RemoteWebElement {
     // executeMethod("locator.blur()");
   }
 
+  /**
+   * Types and clears the buffered characters, if any.
+   *
+   * @param text the buffered characters
+   */
+  private void type(StringBuilder text) {
+    if (text.length() > 0) {
+      execService.type(text.toString());
+      text.setLength(0);
+    }
+  }
+
+  /**
+   * Presses a special key.  Keys which should be held down are pressed but not released, unless
+   * they have been pressed already, and the "null" key releases all keys held down.
+   *
+   * @param key      the key to press
+   * @param holdKeys keys which should be held down instead of pressed
+   * @param heldKeys keys which have been held down and need to be released
+   */
+  private void pressKey(String key, List<String> holdKeys, List<String> heldKeys) {
+    if (holdKeys.contains(key) && !heldKeys.contains(key) && !execService.keyIsPressed(key)) {
+      execService.key(key, false);
+      heldKeys.add(key);
+    } else if (key.equals("null")) {
+      for (String hkey : heldKeys) {
+        execService.key(hkey, true);
+      }
+    } else {
+      execService.key(key);
+    }
+  }
+
+  /**
+   * Whether the keys to send are plain text only, without any special keys or line breaks.
+   */
+  private static boolean isPlainText(CharSequence... keysToSend) {
+    for (CharSequence seq : keysToSend) {
+      if (seq instanceof Keys) {
+        return false;
+      }
+
+      for (int i = 0; i < seq.length(); i++) {
+        char c = seq.charAt(i);
+        if (c == '\n' || c == '\r' || charToKeyName(c) != null) {
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Whether this element is a text area or a single-line text input field.
+   */
+  private boolean isTextField() {
+    String tag = getTagName();
+    if (tag.equals("TEXTAREA")) {
+      return true;
+    } else if (!tag.equals("INPUT")) {
+      return false;
+    }
+
+    String type = getAttribute("type");
+    return type == null || TEXT_INPUT_TYPES.contains(type.toLowerCase());
+  }
+
+  /**
+   * Quotes a string as an ECMAScript string literal.
+   */
+  private static String toJsString(String string) {
+    StringBuilder literal = new StringBuilder("\"");
+
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c == '"' || c == '\\') {
+        literal.append('\\').append(c);
+      } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+        literal.append(String.format("\\u%04x", (int) c));
+      } else {
+        literal.append(c);
+      }
+    }
+
+    return literal.append('"').toString();
+  }
+
   /**
    * Converts a character in the PUA to the name of the key, as given by {@link
    * org.openqa.selenium.Keys}. If the character doesn't appear in that class then null is
@@ -323,7 +441,7 @@ public class OperaWebElement extends RemoteWebElement {
   public void submit() {
     parent.getScopeServices().captureOperaIdle();
 
-    evaluateMethod("return " + OperaAtom.SUBMIT + "(locator)");
+    evaluateMethod("return " + debugger.getAtom(OperaAtom.SUBMIT) + "(locator)");
 
     try {
       parent.waitForLoadToComplete();
@@ -337,11 +455,9 @@ public class OperaWebElement extends RemoteWebElement {
    * Click top left, can be modified to click in the middle
    */
   public Point getLocation() {
-    assertElementNotStale();
-
     String coordinates =
-        debugger.callFunctionOnObject("var coords = " + OperaAtom.GET_LOCATION
-                                      + "(locator); return coords.x + ',' + coords.y;", objectId);
+        callMethodIfNotStale("var coords = " + debugger.getAtom(OperaAtom.GET_LOCATION)
+                             + "(locator); return coords.x + ',' + coords.y;");
 
     // TODO: The goog.dom.getDocumentScrollElement_() function the Google closure library doesn't
     // return the document for SVG documents. This is used by the above atom. In this case the
@@ -360,11 +476,9 @@ public class OperaWebElement extends RemoteWebElement {
   }
 
   public Dimension getSize() {
-    assertElementNotStale();
-
     String widthAndHeight =
-        debugger.callFunctionOnObject("var s=" + OperaAtom.GET_SIZE
-                                      + "(locator);return s.width+','+s.height;", objectId);
+        callMethodIfNotStale("var s=" + debugger.getAtom(OperaAtom.GET_SIZE)
+                             + "(locator);return s.width+','+s.height;");
 
     String[] dimension = widthAndHeight.split(",");
     return new Dimension(Integer.valueOf(dimension[0]), Integer.valueOf(dimension[1]));
@@ -432,21 +546,49 @@ public class OperaWebElement extends RemoteWebElement {
     Canvas canvas = buildCanvas();
     ScreenShotReply reply = execService.screenWatcher(canvas, timeout, includeImage, hashes);
 
-    if (includeImage && reply.getPng() != null) {
-      FileChannel stream;
-
-      try {
-        stream = new FileOutputStream(filename).getChannel();
-        stream.write(ByteBuffer.wrap(reply.getPng()));
-        stream.close();
-      } catch (IOException e) {
-        throw new WebDriverException("Failed to write file: " + e.getMessage());
-      }
+    if (includeImage) {
+      writeScreenshot(reply, filename);
     }
 
     return reply.getMd5();
   }
 
+  /**
+   * Take a screenshot of the area this element covers, and save a copy of the image to the given
+   * filename in the background.  The screenshot is taken before this method returns, but the test
+   * does not have to wait for the image to be written to disk.
+   *
+   * @param filename the location to save the screenshot
+   * @param timeout  the number of milliseconds to wait before taking the screenshot
+   * @return a future holding the MD5 hash of the screenshot, which completes when the image has
+   *         been written
+   */
+  public Future<String> saveScreenshotInBackground(final String filename, long timeout) {
+    assertElementNotStale();
+
+    final ScreenShotReply reply = execService.screenWatcher(buildCanvas(), timeout, true);
+
+    return screenshotWriter.submit(new Callable<String>() {
+      public String call() {
+        writeScreenshot(reply, filename);
+        return reply.getMd5();
+      }
+    });
+  }
+
+  /**
+   * Writes the image of a screenshot to the given file.  If Opera sent no image data, because the
+   * image matched one of the known hashes, the file is left empty rather than holding an older
+   * image.
+   */
+  private static void writeScreenshot(ScreenShotReply reply, String filename) {
+    try {
+      reply.writePng(new File(filename));
+    } catch (IOException e) {
+      throw new WebDriverException("Failed to write file: " + e.getMessage());
+    }
+  }
+
   /**
    * Take a screenshot of the area this element's bounding-box covers.
    *
@@ -461,6 +603,27 @@ public class OperaWebElement extends RemoteWebElement {
     return execService.screenWatcher(canvas, timeout, true, hashes);
   }
 
+  /**
+   * Takes a screenshot of the area this element covers, divided into square tiles, and compares
+   * each tile against the same tile of a baseline screenshot.  Only the tiles which have changed
+   * are transferred from Opera.
+   *
+   * @param baseline the diff to compare against, or null to get all tiles
+   * @param tileSize the width and height of the tiles in pixels
+   * @param timeout  the number of milliseconds to wait before taking the screenshot
+   * @return the tiles which have changed, which also serves as the baseline for the next call
+   */
+  public ScreenshotDiff diffScreenshot(ScreenshotDiff baseline, int tileSize, long timeout) {
+    assertElementNotStale();
+
+    Canvas area = buildCanvas();
+    List<Canvas> tiles = ScreenshotDiff.tile(area, tileSize);
+    List<String> hashes = ScreenshotDiff.getBaselineHashes(baseline, area, tileSize);
+
+    return new ScreenshotDiff(area, tileSize, tiles, hashes,
+                              execService.screenWatcher(tiles, timeout, hashes));
+  }
+
   /**
    * Check if the current webpage contains any of the given colors. Used on tests that use red to
    * show a failure.
@@ -514,8 +677,7 @@ public class OperaWebElement extends RemoteWebElement {
   }
 
   public String getTagName() {
-    assertElementNotStale();
-    return callMethod("return (locator.tagName);");
+    return callMethodIfNotStale("return (locator.tagName);");
   }
 
   // TODO: We only return location on screen when scrolled? Isn't this a duplicate method?
@@ -607,12 +769,6 @@ public class OperaWebElement extends RemoteWebElement {
                                 "XPath");
   }
 
-  @Override
-  protected void finalize() throws Throwable {
-    debugger.releaseObject(objectId);
-    super.finalize();
-  }
-
   public Coordinates getCoordinates() {
     return coordinates;
   }
@@ -648,10 +804,9 @@ public class OperaWebElement extends RemoteWebElement {
   };
 
   public String getCssValue(String property) {
-    assertElementNotStale();
-
     String value =
-        callMethod("return " + OperaAtom.GET_EFFECTIVE_STYLE + "(locator, '" + property + "')");
+        callMethodIfNotStale("return " + debugger.getAtom(OperaAtom.GET_EFFECTIVE_STYLE)
+                             + "(locator, '" + property + "')");
 
     // WebDriver specifies that the output from getCssValue() must be in RGBA format
     if (property.contains("color") && value.contains("rgb")) {
@@ -698,19 +853,54 @@ public class OperaWebElement extends RemoteWebElement {
   }
 
   private void assertElementNotStale() {
+    assertElementBelongsToPage();
+
+    // Check if current document contains this element
+    if (Boolean.valueOf(callMethod(IS_DISCONNECTED_SCRIPT))) {
+      throw elementDisconnected();
+    }
+  }
+
+  private void assertElementBelongsToPage() {
     // Has the user navigated away from the page this object belongs to?
     if (!parent.objectIds.contains(objectId)) {
       throw new StaleElementReferenceException(
           "Element appears to be stale.  Did you navigate away from the page that contained it?  "
           + "And is the current window focussed the same as the one holding this element?");
     }
+  }
 
-    // Check if current document contains this element
-    if (Boolean.valueOf(callMethod("locator.parentNode == undefined"))) {
-      throw new StaleElementReferenceException(
-          "The element seems to be disconnected from the DOM.  This means that the user cannot "
-          + "interact with it.");
+  private StaleElementReferenceException elementDisconnected() {
+    return new StaleElementReferenceException(
+        "The element seems to be disconnected from the DOM.  This means that the user cannot "
+        + "interact with it.");
+  }
+
+  /**
+   * Asserts that the element is not stale and calls the given method.  Both scripts are sent to
+   * Opera before waiting for any of the responses, so this costs a single round-trip.
+   *
+   * @param method the method to call, must not have side effects
+   * @return response of EcmaScript in string presentation
+   */
+  private String callMethodIfNotStale(String method) {
+    assertElementBelongsToPage();
+
+    List<Object> results;
+    try {
+      results = debugger.callFunctionsOnObject(objectId, IS_DISCONNECTED_SCRIPT, method);
+    } catch (WebDriverException e) {
+      // The method might have failed because the element is gone, which is the better error
+      assertElementNotStale();
+      throw e;
     }
+
+    if (Boolean.valueOf(String.valueOf(results.get(0)))) {
+      throw elementDisconnected();
+    }
+
+    Object result = results.get(1);
+    return (result == null) ? null : String.valueOf(result);
   }
 
 }
\ No newline at end of file
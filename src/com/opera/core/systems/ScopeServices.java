@@ -16,7 +16,11 @@ limitations under the License.
 
 package com.opera.core.systems;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.AbstractMessage.Builder;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -25,6 +29,7 @@ import com.opera.core.systems.model.ICommand;
 import com.opera.core.systems.runner.OperaRunner;
 import com.opera.core.systems.scope.ScopeCommand;
 import com.opera.core.systems.scope.exceptions.CommunicationException;
+import com.opera.core.systems.scope.exceptions.ResponseNotReceivedException;
 import com.opera.core.systems.scope.handlers.IConnectionHandler;
 import com.opera.core.systems.scope.handlers.ScopeEventHandler;
 import com.opera.core.systems.scope.internal.OperaDefaults;
@@ -57,6 +62,8 @@ import com.opera.core.systems.scope.services.ums.Selftest;
 import com.opera.core.systems.scope.services.ums.SystemInputManager;
 import com.opera.core.systems.scope.services.ums.UmsServices;
 import com.opera.core.systems.scope.stp.StpConnection;
+import com.opera.core.systems.scope.stp.StpConnectionListener;
+import com.opera.core.systems.scope.stp.StpReactor;
 import com.opera.core.systems.scope.stp.StpThread;
 import com.opera.core.systems.util.VersionUtil;
 
@@ -64,8 +71,15 @@ import org.openqa.selenium.WebDriverException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
@@ -76,12 +90,26 @@ import java.util.logging.Logger;
  */
 public class ScopeServices implements IConnectionHandler {
 
+  /**
+   * Asynchronous scripts signal that their callback has been invoked by posting a console message
+   * consisting of this prefix followed by the script's token.
+   */
+  public static final String SCRIPT_CALLBACK_PREFIX = "__webdriver_async_done:";
+
   private final Logger logger = Logger.getLogger(getClass().getName());
   private final Map<String, String> versions;
-  private final StpThread stpThread;
+  private final StpThread stpThread;  // null if using a shared reactor
+  private final StpConnectionListener stpListener;  // null if using our own STP thread
   private final AtomicInteger tagCounter;
   private final WaitState waitState = new WaitState();
 
+  /**
+   * Responses to commands sent with {@link #executeCommandAsync(ICommand, Builder)}, keyed by the
+   * STP tag of the command.  Responses for these tags bypass {@link WaitState}.
+   */
+  private final ConcurrentMap<Integer, SettableFuture<Response>> pendingResponses =
+      new ConcurrentHashMap<Integer, SettableFuture<Response>>();
+
   private ICoreUtils coreUtils;
   private IEcmaScriptDebugger debugger;
   private IOperaExec exec;
@@ -110,10 +138,34 @@ public class ScopeServices implements IConnectionHandler {
    */
   public ScopeServices(Map<String, String> requiredServices, int port, boolean manualConnect)
       throws IOException {
+    this(requiredServices, port, manualConnect, null);
+  }
+
+  /**
+   * Creates the Scope server on specified address and port, as well as enabling the required Scope
+   * services.  If a reactor is given, the connection to Opera is serviced by one of the reactor's
+   * threads instead of a dedicated {@link StpThread}.
+   *
+   * @param requiredServices list of required services and their minimum required version
+   * @param port             the port on which to start the Scope server
+   * @param manualConnect    whether to output ready message with port number when starting
+   * @param reactor          the reactor to multiplex the connection over, or null to use a
+   *                         dedicated thread
+   * @throws IOException if an I/O error occurs
+   */
+  public ScopeServices(Map<String, String> requiredServices, int port, boolean manualConnect,
+                       StpReactor reactor) throws IOException {
     versions = requiredServices;
     tagCounter = new AtomicInteger();
-    stpThread = new StpThread(port, this, new ScopeEventHandler(this), manualConnect);
     selftestOutput = new StringBuilder();
+
+    if (reactor == null) {
+      stpThread = new StpThread(port, this, new ScopeEventHandler(this), manualConnect);
+      stpListener = null;
+    } else {
+      stpThread = null;
+      stpListener = reactor.listen(port, this, new ScopeEventHandler(this), manualConnect);
+    }
   }
 
   /**
@@ -174,7 +226,10 @@ public class ScopeServices implements IConnectionHandler {
       wantedServices.add("selftest");
     }
 
-    //wantedServices.add("console-logger");
+    if (versions.containsKey("console-logger")) {
+      wantedServices.add("console-logger");
+    }
+
     //wantedServices.add("http-logger");
     wantedServices.add("cookie-manager");
 
@@ -184,18 +239,21 @@ public class ScopeServices implements IConnectionHandler {
   }
 
   /**
-   * Initializes the services that are available.
+   * Initializes the services that are available.  The exec and core services only send their
+   * requests here and wait for the responses when they are first needed, so their round-trips
+   * overlap with the initialization of the other services.
    *
    * @param enableDebugger whether or not to enable the ecmascript-debugger service
    */
   private void initializeServices(boolean enableDebugger) {
     exec.init();
-    windowManager.init();
 
     if (versions.containsKey("core") && coreUtils != null) {
       coreUtils.init();
     }
 
+    windowManager.init();
+
     if (versions.containsKey("prefs") && prefs != null) {
       prefs.init();
     }
@@ -223,11 +281,17 @@ public class ScopeServices implements IConnectionHandler {
 
   public void shutdown() {
     shutdown = true;  // don't unlock this
+    failPendingResponses(new CommunicationException("Connection to Opera was shut down"));
 
     if (isConnected()) {
       connection.close();
     }
 
+    if (stpThread == null) {
+      stpListener.stop();
+      return;
+    }
+
     stpThread.shutdown();
 
     try {
@@ -301,6 +365,10 @@ public class ScopeServices implements IConnectionHandler {
           return null;
         }
 
+        public List<Object> callFunctionsOnObject(int objectId, String... scripts) {
+          return null;
+        }
+
         public Object executeScript(String using, boolean responseExpected) {
           return null;
         }
@@ -326,6 +394,14 @@ public class ScopeServices implements IConnectionHandler {
         public void changeRuntime(String framePath) {
         }
 
+        public String getAtom(OperaAtom atom) {
+          return atom.getValue();
+        }
+
+        public Integer findElement(String using, Integer objectId) {
+          return null;
+        }
+
         public Object callFunctionOnObject(String using, int objectId,
                                            boolean responseExpected) {
           return null;
@@ -354,6 +430,9 @@ public class ScopeServices implements IConnectionHandler {
         public void releaseObject(int objectId) {
         }
 
+        public void trackObject(Object owner, int objectId) {
+        }
+
         public void resetFramePath() {
         }
 
@@ -382,25 +461,37 @@ public class ScopeServices implements IConnectionHandler {
     executeCommand(ScopeCommand.CONNECT, info);
   }
 
+  /**
+   * Enables the given services, if Opera has them.  The services are independent of each other, so
+   * all enable commands are sent before waiting for any of the responses.
+   *
+   * @param requiredServices the names of the services to enable
+   */
   public void enableServices(List<String> requiredServices) {
+    Map<String, Future<Response>> pending = new LinkedHashMap<String, Future<Response>>();
     for (String requiredService : requiredServices) {
+      if (getListedServices().contains(requiredService)) {
+        ServiceSelection.Builder selection = ServiceSelection.newBuilder();
+        selection.setName(requiredService);
+        pending.put(requiredService, executeCommandAsync(ScopeCommand.ENABLE, selection));
+      }
+    }
+
+    for (Map.Entry<String, Future<Response>> entry : pending.entrySet()) {
+      Response response =
+          waitForResponse(entry.getValue(), OperaIntervals.RESPONSE_TIMEOUT.getMs());
+      if (response == null) {
+        throw new WebDriverException("Could not enable service: " + entry.getKey());
+      }
+
       try {
-        if (getListedServices().contains(requiredService)) {
-          enable(requiredService);
-        }
+        ServiceResult.parseFrom(response.getPayload());
       } catch (InvalidProtocolBufferException e) {
         throw new WebDriverException("Could not parse the message", e);
       }
     }
   }
 
-  private ServiceResult enable(String serviceName) throws InvalidProtocolBufferException {
-    ServiceSelection.Builder selection = ServiceSelection.newBuilder();
-    selection.setName(serviceName);
-    Response response = executeCommand(ScopeCommand.ENABLE, selection);
-    return ServiceResult.parseFrom(response.getPayload());
-  }
-
   public void quitOpera(OperaRunner runner) {
     if (!isConnected()) {
       return;
@@ -532,6 +623,7 @@ public class ScopeServices implements IConnectionHandler {
     logger.fine("Disconnected, closing STP connection");
     if (isConnected() && !shutdown) {
       waitState.onDisconnected();
+      failPendingResponses(new CommunicationException("Disconnected from Opera"));
       connection = null;
     }
   }
@@ -541,6 +633,23 @@ public class ScopeServices implements IConnectionHandler {
     waitState.onOperaIdle();
   }
 
+  public void onReadyStateChange(ReadyStateChange change) {
+    logger.finest("Ready state changed: runtimeId=" + change.getRuntimeID() + ", state="
+                  + change.getState());
+    waitState.onReadyStateChange(change.getRuntimeID(), change.getState());
+  }
+
+  /**
+   * Called when the callback of an asynchronous script has been invoked, see {@link
+   * #SCRIPT_CALLBACK_PREFIX}.
+   *
+   * @param token the token identifying the script
+   */
+  public void onScriptCallback(String token) {
+    logger.finest("Script callback invoked: token=" + token);
+    waitState.onScriptCallback(token);
+  }
+
   public void onSelftestOutput(SelftestOutput output) {
     selftestOutput = selftestOutput.append(output.getOutput());
   }
@@ -564,6 +673,51 @@ public class ScopeServices implements IConnectionHandler {
     waitState.waitForWindowLoaded(activeWindowId, timeout);
   }
 
+  /**
+   * Gets a count of the events received so far after which the document may have changed.
+   *
+   * @return the current activity count
+   * @see #waitForActivity(long, long)
+   */
+  public long getActivity() {
+    return waitState.getActivity();
+  }
+
+  /**
+   * Waits for an event after which the document may have changed, such as a ready state change, a
+   * window being loaded or Opera going idle.  This lets callers waiting for a condition on the
+   * document re-check it as soon as it may have become true instead of sleeping a fixed interval.
+   *
+   * @param since   the activity count as returned by {@link #getActivity()} before the caller last
+   *                looked at the document
+   * @param timeout time in milliseconds to wait before giving up
+   * @return true if there has been activity since <code>since</code>, false if the wait timed out
+   */
+  public boolean waitForActivity(long since, long timeout) {
+    return waitState.waitForActivity(since, timeout);
+  }
+
+  /**
+   * Whether Opera can notify us of asynchronous script callbacks being invoked.  This requires the
+   * console-logger service.
+   *
+   * @return true if {@link #waitForScriptCallback(String, long)} can be used
+   */
+  public boolean isScriptCallbackAvailable() {
+    return versions.containsKey("console-logger") && availableServices != null
+           && availableServices.containsKey("console-logger");
+  }
+
+  /**
+   * Waits for the callback of the asynchronous script with the given token to be invoked.
+   *
+   * @param token   the token identifying the script
+   * @param timeout time in milliseconds to wait before giving up
+   */
+  public void waitForScriptCallback(String token, long timeout) {
+    waitState.waitForScriptCallback(token, timeout);
+  }
+
   public boolean isOperaIdleAvailable() {
     for (ScopeProtos.Service service : hostInfo.getServiceListList()) {
       if (service.getName().equals("core")) {
@@ -591,10 +745,28 @@ public class ScopeServices implements IConnectionHandler {
    * To prevent this you can call this function which will enable the tracking of any Idle events
    * received between now and when you call waitForOperaIdle(). If Idle events have been received
    * then waitForOperaIdle() will return immediately.
+   *
+   * This also starts tracking documents which start loading from now on, for {@link
+   * #waitForLoad(long, long)}.
    */
   public void captureOperaIdle() {
     logger.finer("idle: Capturing idle event");
     waitState.captureOperaIdle();
+    waitState.captureLoads();
+  }
+
+  /**
+   * Waits for the DOM content of the first document to start loading since {@link
+   * #captureOperaIdle()} to be loaded, as signalled by the ready state events of the ecmascript
+   * service.
+   *
+   * @param startTimeout time in milliseconds to wait for a document to start loading
+   * @param timeout      time in milliseconds to wait for its DOM content to be loaded
+   * @return true if a document was loaded, false if no document started loading in time or it did
+   *         not finish loading in time
+   */
+  public boolean waitForLoad(long startTimeout, long timeout) {
+    return waitState.waitForLoad(startTimeout, timeout);
   }
 
   /**
@@ -704,6 +876,13 @@ public class ScopeServices implements IConnectionHandler {
   public void onResponseReceived(int tag, Response response) {
     if (isConnected()) {
       logger.finest("Got response");
+
+      SettableFuture<Response> pending = pendingResponses.remove(tag);
+      if (pending != null) {
+        pending.set(response);
+        return;
+      }
+
       if (response != null) {
         waitState.onResponse(tag, response);
       } else {
@@ -715,6 +894,7 @@ public class ScopeServices implements IConnectionHandler {
   public void onException(Exception exception) {
     if (isConnected()) {
       waitState.onException(exception);
+      failPendingResponses(exception);
       connection = null;
     }
   }
@@ -735,6 +915,36 @@ public class ScopeServices implements IConnectionHandler {
     }
   }
 
+  /**
+   * Waits for the response to a command sent with {@link #executeCommandAsync(ICommand, Builder)}.
+   *
+   * @param future  the future returned when the command was sent
+   * @param timeout time in milliseconds to wait for the response
+   * @return the response, or null if Opera replied with an error
+   */
+  public Response waitForResponse(Future<Response> future, long timeout) {
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(false);
+      shutdown();
+      throw new ResponseNotReceivedException("No response in a timely fashion");
+    } catch (ExecutionException e) {
+      shutdown();
+      throw Throwables.propagate(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new WebDriverException(e);
+    }
+  }
+
+  private void failPendingResponses(Throwable cause) {
+    for (SettableFuture<Response> pending : pendingResponses.values()) {
+      pending.setException(cause);
+    }
+    pendingResponses.clear();
+  }
+
   public void setListedServices(java.util.List<String> services) {
     listedServices = services;
   }
@@ -774,12 +984,51 @@ public class ScopeServices implements IConnectionHandler {
                                            : ByteString.EMPTY;
     Command.Builder commandBuilder = buildCommand(command, payload);
     int tag = commandBuilder.getTag();
+    waitState.expectResponse(tag);
     connection.send(commandBuilder.build());
     return waitForResponse(tag, timeout);
   }
 
+  /**
+   * Sends a command without waiting for the response.  The returned future is keyed by the STP tag
+   * of the command and is completed when Opera replies to it, which allows several commands to be
+   * in flight on the connection at the same time.  Use {@link #waitForResponse(Future, long)} to
+   * collect the response.
+   *
+   * @param command the command to send
+   * @param builder the payload of the command, or null if it has none
+   * @return a future holding the response, or null if Opera replied with an error
+   */
+  public ListenableFuture<Response> executeCommandAsync(ICommand command, Builder<?> builder) {
+    ByteString payload = (builder != null) ? builder.build().toByteString()
+                                           : ByteString.EMPTY;
+    Command.Builder commandBuilder = buildCommand(command, payload);
+    final int tag = commandBuilder.getTag();
+    final SettableFuture<Response> future = SettableFuture.create();
+
+    StpConnection current = connection;
+    if (current == null) {
+      future.setException(new CommunicationException("Not connected to Opera"));
+      return future;
+    }
+
+    // Register before sending so that a fast response can not slip past us
+    pendingResponses.put(tag, future);
+    future.addListener(new Runnable() {
+      public void run() {
+        pendingResponses.remove(tag, future);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+
+    current.send(commandBuilder.build());
+    return future;
+  }
+
   public void startStpThread() {
-    stpThread.start();
+    // When using a reactor we are serviced by its threads, which are already running
+    if (stpThread != null) {
+      stpThread.start();
+    }
   }
 
   public void onRequest(int windowId) {
@@ -16,7 +16,8 @@ limitations under the License.
 
 package com.opera.core.systems;
 
-import com.google.common.base.Throwables;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 
 import com.opera.core.systems.scope.exceptions.CommunicationException;
 import com.opera.core.systems.scope.exceptions.ResponseNotReceivedException;
@@ -24,663 +25,561 @@ import com.opera.core.systems.scope.protos.DesktopWmProtos.DesktopWindowInfo;
 import com.opera.core.systems.scope.protos.DesktopWmProtos.QuickMenuID;
 import com.opera.core.systems.scope.protos.DesktopWmProtos.QuickMenuInfo;
 import com.opera.core.systems.scope.protos.DesktopWmProtos.QuickMenuItemID;
+import com.opera.core.systems.scope.protos.EcmascriptProtos.ReadyStateChange;
 import com.opera.core.systems.scope.protos.UmsProtos.Response;
 
 import org.openqa.selenium.WebDriverException;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
- * This class handles a queue of events to be handled from multiple threads.  One thread can wait
- * for events to happen while other threads can post these events by calling the on{Event}
+ * This class handles responses and events to be handled from multiple threads.  One thread can
+ * wait for events to happen while other threads can post these events by calling the on{Event}
  * handlers.
  *
+ * Responses to commands are delivered to a slot keyed by the command's tag, so that posting a
+ * response only wakes the thread waiting for that tag.  Events are posted to a bounded channel per
+ * kind of event, so that waiting for one kind of event never has to look at the others.
+ *
  * @author Jan Vidar Krey <janv@opera.com>
  */
 public class WaitState {
 
+  /**
+   * The maximum number of events kept in each channel.  When a channel is full the oldest event
+   * is dropped to make room for a new one.
+   */
+  private static final int CHANNEL_CAPACITY = 256;
+
   private final Logger logger = Logger.getLogger(getClass().getName());
 
-  private boolean connected;
-  private boolean waitEvents;
+  /**
+   * Set when the connection is lost, either because of an exception on the STP connection or
+   * because Opera disconnected.  Wakes up and fails all current and future waits.
+   */
+  private volatile WebDriverException failure;
+
+  private volatile boolean handshake;
+  private final Object handshakeLock = new Object();
+
+  /**
+   * Counts events after which the document may have changed, such as ready state changes, loaded
+   * windows and idle events.  Waits for a condition on the document block on this rather than
+   * sleeping between attempts.
+   */
+  private long activity;
+  private final Object activityLock = new Object();
+
+  /**
+   * Tracks the first document to start loading after {@link #captureLoads()}: its runtime ID (0 if
+   * no document has started loading yet) and whether its DOM content has been loaded.  The first
+   * document to be created after a navigating action is normally the top-level one.  AFTER_ONLOAD
+   * is reported to be broken, so like the ecmascript service we go by DOM_CONTENT_LOADED.
+   */
+  private boolean captureLoads;
+  private int loadingRuntime;
+  private boolean loaded;
+  private final Object loadLock = new Object();
+
+  private final ConcurrentMap<Integer, ResponseSlot> responses =
+      new ConcurrentHashMap<Integer, ResponseSlot>();
+
+  private final EventChannel<WindowEvent> windowEvents =
+      new EventChannel<WindowEvent>("window");
+  private final EventChannel<Integer> requestEvents = new EventChannel<Integer>("request");
+  private final EventChannel<Boolean> idleEvents = new EventChannel<Boolean>("idle");
+  private final EventChannel<DesktopWindowInfo> desktopWindowShownEvents =
+      new EventChannel<DesktopWindowInfo>("desktop window shown");
+  private final EventChannel<DesktopWindowInfo> desktopWindowUpdatedEvents =
+      new EventChannel<DesktopWindowInfo>("desktop window updated");
+  private final EventChannel<DesktopWindowInfo> desktopWindowActivatedEvents =
+      new EventChannel<DesktopWindowInfo>("desktop window activated");
+  private final EventChannel<DesktopWindowInfo> desktopWindowClosedEvents =
+      new EventChannel<DesktopWindowInfo>("desktop window closed");
+  private final EventChannel<DesktopWindowInfo> desktopWindowLoadedEvents =
+      new EventChannel<DesktopWindowInfo>("desktop window loaded");
+  private final EventChannel<DesktopWindowInfo> desktopWindowPageChangedEvents =
+      new EventChannel<DesktopWindowInfo>("desktop window page changed");
+  private final EventChannel<QuickMenuInfo> quickMenuShownEvents =
+      new EventChannel<QuickMenuInfo>("quick menu shown");
+  private final EventChannel<QuickMenuID> quickMenuClosedEvents =
+      new EventChannel<QuickMenuID>("quick menu closed");
+  private final EventChannel<QuickMenuItemID> quickMenuItemPressedEvents =
+      new EventChannel<QuickMenuItemID>("quick menu item pressed");
+  private final EventChannel<String> selftestDoneEvents =
+      new EventChannel<String>("selftest done");
+  private final EventChannel<String> scriptCallbackEvents =
+      new EventChannel<String>("script callback");
 
   /**
    * Whether we should keep a note of any idle events received.
    *
    * This is used when we perform an action where we want to wait for an idle event, such as
    * clicking. First one has to wait for the "click" response, but in the mean time there may be an
-   * idle event which would be missed.  The number of missed idle events is stored in
-   * capturedIdleEvents.
+   * idle event which would be missed.  While capturing, idle events are kept in the idle channel
+   * until the next call to {@link #waitForOperaIdle(long)}.
    */
-  private boolean captureIdleEvents = false;
+  private volatile boolean captureIdleEvents = false;
 
   /**
-   * Stores the number of Idle events seen while captureIdleEvent is enabled.
-   *
-   * See the explanation for captureIdleEvent.
+   * A single-use slot for the response to a command.
    */
-  private int capturedIdleEvents = 0;
-
-  private final Object lock = new Object();
-
-  enum WaitResult {
-    RESPONSE,                        // Got a response
-    ERROR,                           // Got an error response
-    EXCEPTION,                       // An exception occurred (STP connection is not alive)
-    DISCONNECTED,                    // STP connection is disconnected
-    HANDSHAKE,                       // STP Handshake
-    EVENT_WINDOW_ACTIVATED,          // active window changed
-    EVENT_WINDOW_LOADED,             // finished loaded
-    EVENT_WINDOW_CLOSED,             // window closed
-    EVENT_OPERA_IDLE,                // opera is now idle
-    EVENT_DESKTOP_WINDOW_SHOWN,      // desktop window has shown and should be visible
-    EVENT_DESKTOP_WINDOW_CLOSED,     // desktop window closed
-    EVENT_DESKTOP_WINDOW_ACTIVATED,  // desktop window activated
-    EVENT_DESKTOP_WINDOW_UPDATED,    // desktop window updated
-    EVENT_DESKTOP_WINDOW_LOADED,
-    EVENT_REQUEST_FIRED,             // sent when a http request is fired
-    EVENT_QUICK_MENU_SHOWN,          // Quick menu shown
-    EVENT_QUICK_MENU_CLOSED,         // Quick menu was closed
-    EVENT_QUICK_MENU_ITEM_PRESSED,   // Quick menu item was pressed
-    EVENT_SELFTEST_DONE,             // Selftest service finishes testing
-    EVENT_DESKTOP_WINDOW_PAGE_CHANGED /* new Page shown in a dialog/window */
-  }
-
-  private class ResultItem {
-
-    private int data;
-    private final WaitResult waitResult;
-    private Exception exception;
+  private final class ResponseSlot {
+
+    private boolean done;
     private Response response;
-    private boolean seen;
-    private long remainingIdleTimeout;
-    private DesktopWindowInfo desktopWindowInfo;
-    private QuickMenuInfo quickMenuInfo;
-    private QuickMenuID quickMenuId;
-    private QuickMenuItemID quickMenuItemID;
-
-    // Store the data for now, but it seems wasteful
-    private String selftestResults;
-
-    public ResultItem(Exception ex) {
-      waitResult = WaitResult.EXCEPTION;
-      exception = ex;
-      logger.finest(String.format("EVENT: %s, exception: %s", waitResult, exception));
-    }
 
-    public ResultItem(WaitResult result) {
-      this.waitResult = result;
-      logger.finest("EVENT: " + result.toString());
+    synchronized void complete(Response response) {
+      this.response = response;
+      done = true;
+      notifyAll();
     }
 
-    /**
-     * TODO: Explain
-     *
-     * Response events:
-     *
-     * BINARY_EXIT    with exit code WINDOW_LOADED  with windowID ERROR          with tag ID
-     */
-    public ResultItem(WaitResult result, int data) {
-      this.waitResult = result;
-      this.data = data;
-      logger.finest("EVENT: " + result.toString() + ", data=" + data);
+    synchronized void abort() {
+      notifyAll();
     }
 
-    public ResultItem(WaitResult result, DesktopWindowInfo info) {
-      this.waitResult = result;
-      this.desktopWindowInfo = info;
-      logger.finest("EVENT: " + result.toString() + ", desktop window=" + info.getWindowID());
-    }
+    synchronized Response await(long timeout) {
+      long end = System.currentTimeMillis() + timeout;
 
-    public ResultItem(WaitResult result, QuickMenuInfo info) {
-      this.waitResult = result;
-      this.quickMenuInfo = info; // TODO FIXME
-      logger
-          .finest("EVENT: " + result.toString() + ", quick_menu=" + info.getMenuId().getMenuName());
-    }
+      while (!done) {
+        assertConnected();
 
-    public ResultItem(WaitResult result, QuickMenuID id) {
-      this.waitResult = result;
-      this.quickMenuId = id;
+        long remaining = end - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new ResponseNotReceivedException("No response in a timely fashion");
+        }
 
-      logger.finest("EVENT: " + result.toString() + ", quick_menu=" + id.getMenuName());
-    }
+        internalWait(this, remaining);
+      }
 
-    public ResultItem(WaitResult result, QuickMenuItemID info) {
-      this.waitResult = result;
-      this.quickMenuItemID = info; // TODO FIXME
-      logger.finest("EVENT: " + result.toString() + ", quick_menu_item=" + info.getMenuText());
+      return response;
     }
 
+  }
 
-    public ResultItem(Response response, int tag) {
-      this.response = response;
-      this.data = tag;
-      waitResult = WaitResult.RESPONSE;
-      logger.finest("EVENT: " + waitResult.toString() + ", data=" + data);
-    }
+  /**
+   * A bounded, first-in first-out queue for one kind of event.
+   */
+  private final class EventChannel<T> {
+
+    private final String name;
+    private final Deque<T> events = new ArrayDeque<T>();
 
-    public ResultItem(String results) {
-      waitResult = WaitResult.EVENT_SELFTEST_DONE;
-      selftestResults = results;
+    EventChannel(String name) {
+      this.name = name;
     }
 
-    public boolean isEventToWaitFor() {
-      switch (waitResult) {
-        case EVENT_DESKTOP_WINDOW_ACTIVATED:
-        case EVENT_DESKTOP_WINDOW_CLOSED:
-        case EVENT_DESKTOP_WINDOW_UPDATED:
-        case EVENT_DESKTOP_WINDOW_SHOWN:
-        case EVENT_DESKTOP_WINDOW_LOADED:
-        case EVENT_QUICK_MENU_SHOWN:
-        case EVENT_QUICK_MENU_CLOSED:
-        case EVENT_QUICK_MENU_ITEM_PRESSED:
-        case EVENT_SELFTEST_DONE:
-        case EVENT_DESKTOP_WINDOW_PAGE_CHANGED:
-          return true;
+    synchronized void post(T event) {
+      if (events.size() >= CHANNEL_CAPACITY) {
+        logger.finest(String.format("Channel %s is full, dropping oldest event", name));
+        events.removeFirst();
       }
-      return false;
+
+      events.addLast(event);
+      notifyAll();
     }
 
-    public boolean wasSeen() {
-      return seen;
+    synchronized void clear() {
+      events.clear();
     }
 
-    public Exception getException() {
-      return exception;
+    synchronized void abort() {
+      notifyAll();
+    }
+
+    /**
+     * Waits for an event that matches the given predicate.  Events that do not match are
+     * discarded.
+     *
+     * @param matcher the predicate to match events against
+     * @param timeout time in milliseconds to wait before giving up
+     * @param message the error message to use when timing out
+     * @return the first matching event
+     * @throws ResponseNotReceivedException if no matching event is received in time
+     */
+    synchronized T await(Predicate<T> matcher, long timeout, String message) {
+      long end = System.currentTimeMillis() + timeout;
+
+      while (true) {
+        while (!events.isEmpty()) {
+          T event = events.removeFirst();
+          if (matcher.apply(event)) {
+            return event;
+          }
+        }
+
+        assertConnected();
+
+        long remaining = end - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new ResponseNotReceivedException(message);
+        }
+
+        internalWait(this, remaining);
+      }
     }
 
   }
 
-  // TODO(andreastt): Replace with BlockingQueue, this is a very expensive call
-  private final LinkedList<ResultItem> events = new LinkedList<ResultItem>();
+  private static final class WindowEvent {
+
+    private final int windowId;
+    private final boolean closed;
+
+    WindowEvent(int windowId, boolean closed) {
+      this.windowId = windowId;
+      this.closed = closed;
+    }
 
-  enum ResponseType {
-    HANDSHAKE,
-    RESPONSE,
-    WINDOW_LOADED,
-    REQUEST_FIRED,
-    OPERA_IDLE,
-    DESKTOP_WINDOW_SHOWN,
-    DESKTOP_WINDOW_UPDATED,
-    DESKTOP_WINDOW_ACTIVATED,
-    DESKTOP_WINDOW_CLOSED,
-    DESKTOP_WINDOW_LOADED,
-    QUICK_MENU_SHOWN,
-    QUICK_MENU_CLOSED,
-    QUICK_MENU_ITEM_PRESSED,
-    SELFTEST_DONE,
-    DESKTOP_WINDOW_PAGE_CHANGED;
   }
 
   public WaitState() {
-    connected = true;
-    waitEvents = false;
   }
 
-  public void setWaitEvents(boolean wait_events) {
-    this.waitEvents = wait_events;
+  /**
+   * Starts or stops capturing desktop window and quick menu events.  When capturing is started any
+   * events received earlier are forgotten, so that a subsequent wait only considers events that
+   * happened after this call.
+   *
+   * @param waitEvents true to start capturing
+   */
+  public void setWaitEvents(boolean waitEvents) {
+    if (waitEvents) {
+      desktopWindowShownEvents.clear();
+      desktopWindowUpdatedEvents.clear();
+      desktopWindowActivatedEvents.clear();
+      desktopWindowClosedEvents.clear();
+      desktopWindowLoadedEvents.clear();
+      desktopWindowPageChangedEvents.clear();
+      quickMenuShownEvents.clear();
+      quickMenuClosedEvents.clear();
+      quickMenuItemPressedEvents.clear();
+    }
   }
 
-  private void internalWait(long timeout) {
+  private void internalWait(Object monitor, long timeout) {
     try {
-      if (!connected) {
-        throw new CommunicationException("Waiting aborted - not connected!");
-      }
-      lock.wait(timeout);
+      monitor.wait(timeout);
     } catch (InterruptedException e) {
       throw new WebDriverException(e);
     }
   }
 
+  private void assertConnected() {
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void fail(WebDriverException e) {
+    if (failure == null) {
+      failure = e;
+    }
+
+    synchronized (handshakeLock) {
+      handshakeLock.notifyAll();
+    }
+
+    synchronized (activityLock) {
+      activityLock.notifyAll();
+    }
+
+    synchronized (loadLock) {
+      loadLock.notifyAll();
+    }
+
+    for (ResponseSlot slot : responses.values()) {
+      slot.abort();
+    }
+
+    for (EventChannel<?> channel : new EventChannel<?>[]{
+        windowEvents, requestEvents, idleEvents, desktopWindowShownEvents,
+        desktopWindowUpdatedEvents, desktopWindowActivatedEvents, desktopWindowClosedEvents,
+        desktopWindowLoadedEvents, desktopWindowPageChangedEvents, quickMenuShownEvents,
+        quickMenuClosedEvents, quickMenuItemPressedEvents, selftestDoneEvents,
+        scriptCallbackEvents}) {
+      channel.abort();
+    }
+  }
+
   void onHandshake() {
-    synchronized (lock) {
-      logger.finest("Event: onHandshake");
-      events.add(new ResultItem(WaitResult.HANDSHAKE));
-      lock.notifyAll();
+    logger.finest("Event: onHandshake");
+    synchronized (handshakeLock) {
+      handshake = true;
+      handshakeLock.notifyAll();
     }
   }
 
+  /**
+   * Registers interest in the response to the command with the given tag.  This must be called
+   * before the command is sent, as responses to tags nobody is waiting for are dropped.
+   *
+   * @param tag the tag of the command
+   */
+  void expectResponse(int tag) {
+    responses.putIfAbsent(tag, new ResponseSlot());
+  }
+
   void onResponse(int tag, Response response) {
-    synchronized (lock) {
-      logger.finest("Event: onResponse for " + tag);
-      events.add(new ResultItem(response, tag));
-      lock.notifyAll();
-    }
+    logger.finest("Event: onResponse for " + tag);
+    complete(tag, response);
   }
 
   void onError(int tag) {
-    synchronized (lock) {
-      logger.fine("Got ERROR for " + tag);
-      events.add(new ResultItem(WaitResult.ERROR, tag));
-      lock.notifyAll();
+    logger.fine("Got ERROR for " + tag);
+    complete(tag, null);
+  }
+
+  private void complete(int tag, Response response) {
+    ResponseSlot slot = responses.get(tag);
+    if (slot == null) {
+      logger.finest("Nobody is waiting for response to " + tag + ", dropping it");
+      return;
     }
+    slot.complete(response);
   }
 
   void onException(Exception e) {
-    synchronized (lock) {
-      events.add(new ResultItem(e));
-      connected = false;
-      lock.notifyAll();
-    }
+    logger.finest(String.format("EVENT: EXCEPTION, exception: %s", e));
+    fail((e instanceof WebDriverException) ? (WebDriverException) e : new WebDriverException(e));
   }
 
   void onDisconnected() {
-    synchronized (lock) {
-      logger.finest("Event: onDisconnected");
-      events.add(new ResultItem(WaitResult.DISCONNECTED));
-      connected = false;
-      lock.notifyAll();
+    logger.finest("Event: onDisconnected");
+    fail(new CommunicationException("Problem encountered: DISCONNECTED"));
+  }
+
+  private void recordActivity() {
+    synchronized (activityLock) {
+      activity++;
+      activityLock.notifyAll();
     }
   }
 
   void onWindowLoaded(int windowId) {
-    synchronized (lock) {
-      logger.finest("Event: onWindowLoaded");
-      events.add(new ResultItem(WaitResult.EVENT_WINDOW_LOADED, windowId));
-      lock.notifyAll();
-    }
+    logger.finest("Event: onWindowLoaded");
+    windowEvents.post(new WindowEvent(windowId, false));
+    recordActivity();
   }
 
   public void onRequest(int windowId) {
-    synchronized (lock) {
-      logger.finest("Event: onRequest");
-      events.add(new ResultItem(WaitResult.EVENT_REQUEST_FIRED, windowId));
-      lock.notifyAll();
-    }
+    logger.finest("Event: onRequest");
+    requestEvents.post(windowId);
+    recordActivity();
   }
 
   void onWindowClosed(int windowId) {
-    synchronized (lock) {
-      logger.finest("Event: onWindowClosed");
-      events.add(new ResultItem(WaitResult.EVENT_WINDOW_CLOSED, windowId));
-      lock.notifyAll();
-    }
+    logger.finest("Event: onWindowClosed");
+    windowEvents.post(new WindowEvent(windowId, true));
+    recordActivity();
   }
 
   void onOperaIdle() {
-    synchronized (lock) {
-      logger.finest("Event: onOperaIdle");
-      events.add(new ResultItem(WaitResult.EVENT_OPERA_IDLE, 0));// 0 is
-      // important to match later
-      lock.notifyAll();
+    logger.finest("Event: onOperaIdle");
+    idleEvents.post(Boolean.TRUE);
+    recordActivity();
+  }
+
+  void onReadyStateChange(int runtimeId, ReadyStateChange.State state) {
+    logger.finest("Event: onReadyStateChange");
+
+    synchronized (loadLock) {
+      if (captureLoads) {
+        if (state == ReadyStateChange.State.DOM_ENVIRONMENT_CREATED && loadingRuntime == 0) {
+          loadingRuntime = runtimeId;
+        } else if (state == ReadyStateChange.State.DOM_CONTENT_LOADED
+                   && loadingRuntime == runtimeId) {
+          loaded = true;
+        }
+        loadLock.notifyAll();
+      }
     }
+
+    recordActivity();
   }
 
   void onDesktopWindowClosed(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowClosed");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_CLOSED, info));
-      lock.notifyAll();
-    }
+    logger.finest("Event: onDesktopWindowClosed");
+    desktopWindowClosedEvents.post(info);
   }
 
   void onDesktopWindowActivated(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowActivated");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_ACTIVATED, info));
-      lock.notifyAll();
-    }
+    logger.finest("Event: onDesktopWindowActivated");
+    desktopWindowActivatedEvents.post(info);
   }
 
   void onDesktopWindowShown(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowShown");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_SHOWN, info));
-      lock.notifyAll();
-    }
+    logger.finest("Event: onDesktopWindowShown");
+    desktopWindowShownEvents.post(info);
   }
 
   void onDesktopWindowUpdated(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowUpdated");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_UPDATED, info));
-      lock.notifyAll();
-    }
+    logger.finest("Event: onDesktopWindowUpdated");
+    desktopWindowUpdatedEvents.post(info);
   }
 
   void onDesktopWindowLoaded(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowLoaded");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_LOADED, info));
-      lock.notifyAll();
-    }
+    logger.finest("Event: onDesktopWindowLoaded");
+    desktopWindowLoadedEvents.post(info);
   }
 
   void onQuickMenuShown(QuickMenuInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onQuickMenuShown");
-      events.add(new ResultItem(WaitResult.EVENT_QUICK_MENU_SHOWN, info));
-      lock.notifyAll();
-    }
+    logger.finest("Event: onQuickMenuShown");
+    quickMenuShownEvents.post(info);
   }
 
   void onQuickMenuClosed(QuickMenuID id) {
-    synchronized (lock) {
-      logger.finest("Event: onQuickMenuClosed");
-      events.add(new ResultItem(WaitResult.EVENT_QUICK_MENU_CLOSED, id));
-      lock.notifyAll();
-    }
+    logger.finest("Event: onQuickMenuClosed");
+    quickMenuClosedEvents.post(id);
   }
 
   void onQuickMenuItemPressed(QuickMenuItemID menuItemID) {
-    synchronized (lock) {
-      logger.finest("Event: onQuickMenuItemPressed");
-      events.add(new ResultItem(WaitResult.EVENT_QUICK_MENU_ITEM_PRESSED, menuItemID));
-      lock.notifyAll();
-    }
+    logger.finest("Event: onQuickMenuItemPressed");
+    quickMenuItemPressedEvents.post(menuItemID);
   }
 
   void onSelftestDone(String results) {
-    synchronized (lock) {
-      logger.finest("Event: onSelftestDone");
-      events.add(new ResultItem(results));
-      lock.notifyAll();
-    }
+    logger.finest("Event: onSelftestDone");
+    selftestDoneEvents.post(results);
   }
 
-  void onDesktopWindowPageChanged(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.fine("Event: onDesktopPageChanged");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_PAGE_CHANGED, info));
-      lock.notify();
-    }
+  void onScriptCallback(String token) {
+    logger.finest("Event: onScriptCallback");
+    scriptCallbackEvents.post(token);
   }
 
-  private ResultItem getResult() {
-    if (events.isEmpty()) {
-      return null;
-    }
+  void onDesktopWindowPageChanged(DesktopWindowInfo info) {
+    logger.fine("Event: onDesktopPageChanged");
+    desktopWindowPageChangedEvents.post(info);
+  }
 
-    // Test if we are listening to wait events
-    // We don't want to remove them from the list while we are
-    if (waitEvents) {
-      ResultItem resultItem = events.getFirst();
-      while (true) {
-        if (!resultItem.isEventToWaitFor()) {
-          events.remove(resultItem);
-          return resultItem;
-        }
+  public void waitForHandshake(long timeout) {
+    synchronized (handshakeLock) {
+      long end = System.currentTimeMillis() + timeout;
 
-        if (!resultItem.wasSeen()) {
-          resultItem.seen = true;
-          return resultItem;
-        }
+      while (!handshake) {
+        assertConnected();
 
-        int index = events.indexOf(resultItem);
-        if (index + 1 >= events.size()) {
-          return null;
+        long remaining = end - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new ResponseNotReceivedException("No response in a timely fashion");
         }
 
-        resultItem = events.get(index + 1);
+        internalWait(handshakeLock, remaining);
       }
     }
-
-    return events.removeFirst();
   }
 
   /**
-   * Checks for a result item. <p/> If no result item is available this method will wait for timeout
-   * milliseconds and try again. If still no result if available then a ResponseNotReceivedException
-   * is thrown.
+   * Gets the number of events so far after which the document may have changed.  Pass the value
+   * to {@link #waitForActivity(long, long)} to wait for the next such event.
    *
-   * @param timeout time in milliseconds to wait before retrying.
-   * @param idle    whether you are waiting for an Idle event. Changes error message.
-   * @return the result
+   * @return the current activity count
    */
-  private ResultItem pollResultItem(long timeout, boolean idle) {
-    ResultItem result = getResult();
-    if (result != null) {
-      result.remainingIdleTimeout = timeout;
+  public long getActivity() {
+    synchronized (activityLock) {
+      return activity;
     }
+  }
 
-    if (result == null && timeout > 0) {
-      long start = System.currentTimeMillis();
-      internalWait(timeout);
-      long end = System.currentTimeMillis();
-      result = getResult();
-      if (result != null) {
-        result.remainingIdleTimeout = timeout - (end - start);
-        logger.finest("Remaining timeout: " + result.remainingIdleTimeout);
-      }
-    }
+  /**
+   * Waits for an event after which the document may have changed, such as a ready state change, a
+   * window being loaded or Opera going idle.
+   *
+   * @param since   the activity count as returned by {@link #getActivity()} before the caller last
+   *                looked at the document
+   * @param timeout time in milliseconds to wait before giving up
+   * @return true if there has been activity since <code>since</code>, false if the wait timed out
+   */
+  public boolean waitForActivity(long since, long timeout) {
+    synchronized (activityLock) {
+      long end = System.currentTimeMillis() + timeout;
+
+      while (activity == since) {
+        assertConnected();
 
-    if (result == null) {
-      if (idle) {
-        throw new ResponseNotReceivedException("No idle response in a timely fashion");
-      } else {
-        throw new ResponseNotReceivedException("No response in a timely fashion");
+        long remaining = end - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+
+        internalWait(activityLock, remaining);
       }
+
+      return true;
     }
+  }
 
-    return result;
+  /**
+   * Starts tracking documents which start loading from now on, forgetting any earlier ones.  Call
+   * this before performing an action which may cause a navigation, and then {@link
+   * #waitForLoad(long, long)}.
+   */
+  public void captureLoads() {
+    synchronized (loadLock) {
+      captureLoads = true;
+      loadingRuntime = 0;
+      loaded = false;
+    }
   }
 
-  private ResultItem waitAndParseResult(long timeout, int match, String stringMatch,
-                                        final ResponseType type) {
-    synchronized (lock) {
-      while (true) {
-        ResultItem result = pollResultItem(timeout, type == ResponseType.OPERA_IDLE);
-        timeout = result.remainingIdleTimeout;
-        WaitResult waitResult = result.waitResult;
-
-        switch (waitResult) {
-          case HANDSHAKE:
-            if (type == ResponseType.HANDSHAKE) {
-              return null;
-            }
-            break;
-
-          case RESPONSE:
-            if (result.data == match && type == ResponseType.RESPONSE) {
-              return result;
-            } else if (type == ResponseType.HANDSHAKE) {
-              throw new CommunicationException("Expected handshake, got response");
-            }
-            break;
-
-          case ERROR:
-            if (result.data == match && type == ResponseType.RESPONSE) {
-              return null;
-            } else if (type == ResponseType.HANDSHAKE) {
-              throw new CommunicationException("Expected handshake, got error");
-            }
-            break;
-
-          case EXCEPTION:
-            Throwables.propagate(result.getException());
-            break;
-
-          case DISCONNECTED:
-            throw new CommunicationException(String.format("Problem encountered: %s", waitResult));
-
-          case EVENT_WINDOW_LOADED:
-            if (result.data == match && type == ResponseType.WINDOW_LOADED) {
-              return null;
-            }
-            break;
-
-          case EVENT_WINDOW_CLOSED:
-            if (result.data == match && type == ResponseType.WINDOW_LOADED) {
-              throw new CommunicationException("Window closed unexpectedly");
-            }
-            break;
-
-          case EVENT_DESKTOP_WINDOW_SHOWN:
-            if (type == ResponseType.DESKTOP_WINDOW_SHOWN) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.finest("EVENT_DESKTOP_WINDOW_SHOWN: Name: "
-                              + result.desktopWindowInfo.getName() + " ID: "
-                              + result.desktopWindowInfo.getWindowID() + " OnScreen: "
-                              + result.desktopWindowInfo.getOnScreen());
-
-                if (result.desktopWindowInfo.getName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_DESKTOP_WINDOW_UPDATED:
-            if (type == ResponseType.DESKTOP_WINDOW_UPDATED) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("EVENT_DESKTOP_WINDOW_UPDATED: Name: "
-                            + result.desktopWindowInfo.getName() + " ID: "
-                            + result.desktopWindowInfo.getWindowID());
-
-                if (result.desktopWindowInfo.getName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_DESKTOP_WINDOW_ACTIVATED:
-            if (type == ResponseType.DESKTOP_WINDOW_ACTIVATED) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("DESKTOP_WINDOW_ACTIVATED: Name: "
-                            + result.desktopWindowInfo.getName() + " ID: "
-                            + result.desktopWindowInfo.getWindowID());
-
-                if (result.desktopWindowInfo.getName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_DESKTOP_WINDOW_CLOSED:
-            if (type == ResponseType.DESKTOP_WINDOW_CLOSED) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("EVENT_DESKTOP_WINDOW_CLOSED: Name: "
-                            + result.desktopWindowInfo.getName() + " ID: "
-                            + result.desktopWindowInfo.getWindowID());
-
-                if (result.desktopWindowInfo.getName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_DESKTOP_WINDOW_LOADED:
-            if (type == ResponseType.DESKTOP_WINDOW_LOADED) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("EVENT_DESKTOP_WINDOW_LOADED: Name: "
-                            + result.desktopWindowInfo.getName() + " ID: "
-                            + result.desktopWindowInfo.getWindowID());
-
-                if (result.desktopWindowInfo.getName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_QUICK_MENU_SHOWN:
-            if (type == ResponseType.QUICK_MENU_SHOWN) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("EVENT_QUICK_MENU_SHOWN: Name: "
-                            + result.quickMenuInfo.getMenuId().getMenuName());
-
-                if (result.quickMenuInfo.getMenuId().getMenuName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_QUICK_MENU_CLOSED:
-            if (type == ResponseType.QUICK_MENU_CLOSED) {
-              // empty stringMatch
-              if (stringMatch != null && stringMatch.length() == 0) {
-                return result;
-              } else {
-                if (result.quickMenuId.getMenuName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_QUICK_MENU_ITEM_PRESSED:
-            if (type == ResponseType.QUICK_MENU_ITEM_PRESSED) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("QUICK_MENU_ITEM_PRESSED: Text: "
-                            + result.quickMenuItemID.getMenuText());
-
-                if (result.quickMenuItemID.getMenuText().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_DESKTOP_WINDOW_PAGE_CHANGED:
-            if (type == ResponseType.DESKTOP_WINDOW_PAGE_CHANGED) {
-              if (stringMatch.length() == 0) {
-                return result;
-              } else {
-                logger.fine("EVENT_DESKTOP_WINDOW_PAGE_CHANGED: Name: "
-                            + result.desktopWindowInfo.getName() + " ID: "
-                            + result.desktopWindowInfo.getWindowID() + " OnScreen: "
-                            + result.desktopWindowInfo.getOnScreen());
-
-                if (result.desktopWindowInfo.getName().equals(stringMatch)) {
-                  return result;
-                }
-              }
-            }
-            break;
-
-          case EVENT_REQUEST_FIRED:
-            if (result.data == match && type == ResponseType.REQUEST_FIRED) {
-              return null;
-            }
-            break;
-
-          case EVENT_OPERA_IDLE:
-            logger.finest("RECV EVENT_OPERA_IDLE!");
-            if (result.data == match && type == ResponseType.OPERA_IDLE) {
-              return null;
-            }
-            break;
-
-          case EVENT_SELFTEST_DONE:
-            // TODO:
-            logger.finest("RECV EVENT_SELFTEST_DONE");
-            if (type == ResponseType.SELFTEST_DONE) {
-              return result;
-            }
-            break;
+  /**
+   * Waits for the DOM content of the first document to start loading since {@link
+   * #captureLoads()} to be loaded.  Load tracking stops when this method returns.
+   *
+   * @param startTimeout time in milliseconds to wait for a document to start loading
+   * @param timeout      time in milliseconds to wait for its DOM content to be loaded
+   * @return true if a document was loaded, false if no document started loading in time or it did
+   *         not finish loading in time
+   */
+  public boolean waitForLoad(long startTimeout, long timeout) {
+    synchronized (loadLock) {
+      long start = System.currentTimeMillis();
+
+      try {
+        while (!loaded) {
+          assertConnected();
+
+          long now = System.currentTimeMillis();
+          if (loadingRuntime == 0 && now - start >= startTimeout) {
+            return false;
+          } else if (now - start >= timeout) {
+            return false;
+          }
+
+          long end = start + ((loadingRuntime == 0) ? Math.min(startTimeout, timeout) : timeout);
+          internalWait(loadLock, Math.max(end - now, 1));
         }
+
+        return true;
+      } finally {
+        captureLoads = false;
       }
     }
   }
 
-  public void waitForHandshake(long value) {
-    waitAndParseResult(value, 0, null, ResponseType.HANDSHAKE);
-  }
-
-  public void waitForWindowLoaded(int windowId, long timeout) {
+  public void waitForWindowLoaded(final int windowId, long timeout) {
     logger.finest(String.format("waitForWindowLoaded: activeWindowId=%d, timeout=%d",
                                 windowId, timeout));
-    waitAndParseResult(timeout, windowId, null, ResponseType.WINDOW_LOADED);
+
+    windowEvents.await(new Predicate<WindowEvent>() {
+      public boolean apply(WindowEvent event) {
+        if (event.windowId != windowId) {
+          return false;
+        }
+
+        if (event.closed) {
+          throw new CommunicationException("Window closed unexpectedly");
+        }
+
+        return true;
+      }
+    }, timeout, "No response in a timely fashion");
   }
 
   /**
@@ -693,6 +592,7 @@ public class WaitState {
    */
   public void captureOperaIdle() {
     logger.finer("captureIdleEvents is now true!");
+    idleEvents.clear();
     captureIdleEvents = true;
   }
 
@@ -705,144 +605,124 @@ public class WaitState {
    * @param timeout time in milliseconds to wait before aborting
    */
   public void waitForOperaIdle(long timeout) {
-    if (captureIdleEvents && capturedIdleEvents > 0) {
-      logger.finer("Captured " + capturedIdleEvents + " idle event(s)");
-      // reset
-      captureIdleEvents = false;
-      capturedIdleEvents = 0;
-      return;
+    // If we weren't capturing, idle events in the channel happened before the caller was
+    // interested in them.
+    if (!captureIdleEvents) {
+      idleEvents.clear();
     }
 
-    // If we're waiting for an Idle event, then we don't need to capture them anymore.  If we've
-    // reached this far then capturedIdleEvents is already 0.
     captureIdleEvents = false;
-    waitAndParseResult(timeout, 0 /*0 = no window id!*/, null, ResponseType.OPERA_IDLE);
+    idleEvents.await(Predicates.<Boolean>alwaysTrue(), timeout,
+                     "No idle response in a timely fashion");
   }
 
+  /**
+   * Waits for the response to the command with the given tag.
+   *
+   * @param tag     the tag of the command
+   * @param timeout time in milliseconds to wait before aborting
+   * @return the response, or null if Opera replied with an error
+   */
   public Response waitFor(int tag, long timeout) {
-    ResultItem item = waitAndParseResult(timeout, tag, null, ResponseType.RESPONSE);
+    expectResponse(tag);
 
-    if (item != null) {
-      return item.response;
+    try {
+      return responses.get(tag).await(timeout);
+    } finally {
+      responses.remove(tag);
     }
-
-    return null;
   }
 
   public int waitForDesktopWindowShown(String windowName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout, 0, windowName, ResponseType.DESKTOP_WINDOW_SHOWN);
-
-    if (item != null) {
-      return item.desktopWindowInfo.getWindowID();
-    }
-
-    return 0;
+    return waitForDesktopWindow(desktopWindowShownEvents, windowName, timeout);
   }
 
   public int waitForDesktopWindowUpdated(String windowName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout,
-                                         0,
-                                         windowName,
-                                         ResponseType.DESKTOP_WINDOW_UPDATED);
-
-    if (item != null) {
-      return item.desktopWindowInfo.getWindowID();
-    }
-
-    return 0;
+    return waitForDesktopWindow(desktopWindowUpdatedEvents, windowName, timeout);
   }
 
   public int waitForDesktopWindowActivated(String windowName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout,
-                                         0,
-                                         windowName,
-                                         ResponseType.DESKTOP_WINDOW_ACTIVATED);
-
-    if (item != null) {
-      return item.desktopWindowInfo.getWindowID();
-    }
-
-    return 0;
+    return waitForDesktopWindow(desktopWindowActivatedEvents, windowName, timeout);
   }
 
   public int waitForDesktopWindowClosed(String windowName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout,
-                                         0,
-                                         windowName,
-                                         ResponseType.DESKTOP_WINDOW_CLOSED);
-
-    if (item != null) {
-      return item.desktopWindowInfo.getWindowID();
-    }
-
-    return 0;
+    return waitForDesktopWindow(desktopWindowClosedEvents, windowName, timeout);
   }
 
   public int waitForDesktopWindowLoaded(String windowName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout,
-                                         0,
-                                         windowName,
-                                         ResponseType.DESKTOP_WINDOW_LOADED);
-
-    if (item != null) {
-      return item.desktopWindowInfo.getWindowID();
-    }
-
-    return 0;
+    return waitForDesktopWindow(desktopWindowLoadedEvents, windowName, timeout);
   }
 
   public int waitForWindowPageChanged(String windowName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout,
-                                         0,
-                                         windowName,
-                                         ResponseType.DESKTOP_WINDOW_PAGE_CHANGED);
-
-    if (item != null) {
-      return item.desktopWindowInfo.getWindowID();
-    }
-    return 0;
+    return waitForDesktopWindow(desktopWindowPageChangedEvents, windowName, timeout);
   }
 
-  public String waitForQuickMenuShown(String menuName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout, 0, menuName, ResponseType.QUICK_MENU_SHOWN);
-
-    if (item != null) {
-      return item.quickMenuInfo.getMenuId().getMenuName();
-    }
+  private int waitForDesktopWindow(EventChannel<DesktopWindowInfo> channel,
+                                   final String windowName, long timeout) {
+    DesktopWindowInfo info = channel.await(new Predicate<DesktopWindowInfo>() {
+      public boolean apply(DesktopWindowInfo info) {
+        logger.finest("Desktop window event: Name: " + info.getName() + " ID: "
+                      + info.getWindowID() + " OnScreen: " + info.getOnScreen());
+        return windowName.length() == 0 || info.getName().equals(windowName);
+      }
+    }, timeout, "No response in a timely fashion");
 
-    return "";
+    return info.getWindowID();
   }
 
-  public String waitForQuickMenuClosed(String menuName, long timeout) {
-    ResultItem item = waitAndParseResult(timeout, 0, menuName, ResponseType.QUICK_MENU_CLOSED);
+  public String waitForQuickMenuShown(final String menuName, long timeout) {
+    QuickMenuInfo info = quickMenuShownEvents.await(new Predicate<QuickMenuInfo>() {
+      public boolean apply(QuickMenuInfo info) {
+        logger.fine("EVENT_QUICK_MENU_SHOWN: Name: " + info.getMenuId().getMenuName());
+        return menuName.length() == 0 || info.getMenuId().getMenuName().equals(menuName);
+      }
+    }, timeout, "No response in a timely fashion");
 
-    if (item != null) {
-      return item.quickMenuId.getMenuName();
-    }
+    return info.getMenuId().getMenuName();
+  }
 
-    return "";
+  public String waitForQuickMenuClosed(final String menuName, long timeout) {
+    QuickMenuID id = quickMenuClosedEvents.await(new Predicate<QuickMenuID>() {
+      public boolean apply(QuickMenuID id) {
+        return (menuName != null && menuName.length() == 0) || id.getMenuName().equals(menuName);
+      }
+    }, timeout, "No response in a timely fashion");
+
+    return id.getMenuName();
   }
 
-  public String waitForQuickMenuItemPressed(String menuItemText, long timeout) {
-    ResultItem
-        item =
-        waitAndParseResult(timeout, 0, menuItemText, ResponseType.QUICK_MENU_ITEM_PRESSED);
+  public String waitForQuickMenuItemPressed(final String menuItemText, long timeout) {
+    QuickMenuItemID id = quickMenuItemPressedEvents.await(new Predicate<QuickMenuItemID>() {
+      public boolean apply(QuickMenuItemID id) {
+        logger.fine("QUICK_MENU_ITEM_PRESSED: Text: " + id.getMenuText());
+        return menuItemText.length() == 0 || id.getMenuText().equals(menuItemText);
+      }
+    }, timeout, "No response in a timely fashion");
 
-    if (item != null) {
-      return item.quickMenuItemID.getMenuText();
-    }
+    return id.getMenuText();
+  }
 
-    return "";
+  /**
+   * Waits for the callback of the asynchronous script with the given token to be invoked.
+   * Callbacks of other scripts, such as ones which have already timed out, are discarded.
+   *
+   * @param token   the token identifying the script
+   * @param timeout time in milliseconds to wait before giving up
+   * @throws ResponseNotReceivedException if the callback is not invoked in time
+   */
+  public void waitForScriptCallback(final String token, long timeout) {
+    scriptCallbackEvents.await(new Predicate<String>() {
+      public boolean apply(String event) {
+        return event.equals(token);
+      }
+    }, timeout, "Script callback was not invoked in a timely fashion");
   }
 
   public String waitForSelftestDone(long timeout) {
-    ResultItem item = waitAndParseResult(timeout, 0, null, ResponseType.SELFTEST_DONE);
-
-    if (item != null) {
-      return item.selftestResults;
-    }
-
-    return null;
+    String results = selftestDoneEvents.await(Predicates.<String>alwaysTrue(), timeout,
+                                              "No response in a timely fashion");
+    logger.finest("RECV EVENT_SELFTEST_DONE");
+    return results;
   }
 
-}
\ No newline at end of file
+}
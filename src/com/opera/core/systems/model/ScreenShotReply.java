@@ -16,6 +16,14 @@ limitations under the License.
 
 package com.opera.core.systems.model;
 
+import com.google.protobuf.ByteString;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 
 /**
@@ -28,7 +36,7 @@ public class ScreenShotReply {
 
   protected int windowId;
   protected String md5;
-  protected byte[] png;
+  protected ByteString png;
   protected boolean blank;
   protected boolean crashed;
 
@@ -49,7 +57,18 @@ public class ScreenShotReply {
 
   public ScreenShotReply(String md5, byte[] png) {
     this.md5 = md5;
-    this.png = png.clone();
+    this.png = ByteString.copyFrom(png);
+  }
+
+  /**
+   * Creates a reply sharing the given PNG data, which is immutable, rather than copying it.
+   *
+   * @param md5 the MD5 hash of the image
+   * @param png the PNG data
+   */
+  public ScreenShotReply(String md5, ByteString png) {
+    this.md5 = md5;
+    this.png = png;
   }
 
   public ScreenShotReply(String md5, List<ColorResult> colorResult) {
@@ -73,12 +92,60 @@ public class ScreenShotReply {
     this.md5 = md5;
   }
 
+  /**
+   * Returns a copy of the PNG data.  Prefer {@link #writePng(WritableByteChannel)} or {@link
+   * #writePng(File)} for writing it somewhere, which do not copy it.
+   *
+   * @return the PNG data, or null if there is none
+   */
   public byte[] getPng() {
-    return png;
+    return (png == null) ? null : png.toByteArray();
   }
 
   public void setPng(byte[] png) {
-    this.png = png.clone();
+    this.png = ByteString.copyFrom(png);
+  }
+
+  /**
+   * Whether this reply holds any PNG data.  The screen watcher sends no data if the image matches
+   * one of the known hashes, or if the image was not asked for.
+   *
+   * @return true if there is PNG data
+   */
+  public boolean hasPng() {
+    return png != null && !png.isEmpty();
+  }
+
+  /**
+   * Writes the PNG data to a channel without copying it.
+   *
+   * @param channel the channel to write to
+   * @throws IOException if an I/O error occurs
+   */
+  public void writePng(WritableByteChannel channel) throws IOException {
+    if (png == null) {
+      return;
+    }
+
+    ByteBuffer buffer = png.asReadOnlyByteBuffer();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Writes the PNG data to a file without copying it, replacing the file if it exists.
+   *
+   * @param file the file to write to
+   * @throws IOException if an I/O error occurs
+   */
+  public void writePng(File file) throws IOException {
+    FileChannel channel = new FileOutputStream(file).getChannel();
+    try {
+      writePng(channel);
+    } finally {
+      channel.close();
+    }
   }
 
   public boolean isBlank() {
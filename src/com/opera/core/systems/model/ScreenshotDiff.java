@@ -0,0 +1,186 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.model;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The result of comparing a screenshot of an area, divided into a grid of square tiles, against a
+ * baseline screenshot of the same area.  Only the tiles whose MD5 hash differs from the baseline's
+ * carry image data.
+ *
+ * A diff also serves as the baseline for the next comparison, as it holds the hashes of all of its
+ * tiles.  Two screenshots can only be compared tile by tile if their areas have the same size and
+ * they were divided using the same tile size; otherwise all tiles are considered changed.
+ */
+public class ScreenshotDiff {
+
+  private final int tileSize;
+  private final int width;
+  private final int height;
+  private final List<String> hashes;
+  private final List<Tile> changedTiles;
+
+  /**
+   * A tile which differs from the baseline.
+   */
+  public static class Tile {
+
+    private final Canvas area;
+    private final ScreenShotReply reply;
+
+    public Tile(Canvas area, ScreenShotReply reply) {
+      this.area = area;
+      this.reply = reply;
+    }
+
+    /**
+     * Gets the area of this tile, relative to the top-left corner of the compared area.
+     *
+     * @return the area of this tile
+     */
+    public Canvas getArea() {
+      return area;
+    }
+
+    public String getMd5() {
+      return reply.getMd5();
+    }
+
+    /**
+     * Gets the screenshot of this tile, including its PNG data.
+     *
+     * @return the screenshot
+     */
+    public ScreenShotReply getScreenshot() {
+      return reply;
+    }
+
+  }
+
+  /**
+   * @param area     the compared area
+   * @param tileSize the width and height of the tiles
+   * @param tiles    the tiles of the area, as returned by {@link #tile(Canvas, int)}
+   * @param baseline the hashes of the baseline's tiles, as returned by {@link
+   *                 #getBaselineHashes(ScreenshotDiff, Canvas, int)}
+   * @param replies  the screenshots of the tiles
+   */
+  public ScreenshotDiff(Canvas area, int tileSize, List<Canvas> tiles, List<String> baseline,
+                        List<ScreenShotReply> replies) {
+    checkArgument(tiles.size() == replies.size() && tiles.size() == baseline.size(),
+                  "There must be one screenshot and baseline hash for every tile");
+
+    this.tileSize = tileSize;
+    width = area.getWidth();
+    height = area.getHeight();
+
+    ImmutableList.Builder<String> hashes = ImmutableList.builder();
+    ImmutableList.Builder<Tile> changed = ImmutableList.builder();
+
+    for (int i = 0; i < tiles.size(); i++) {
+      String md5 = replies.get(i).getMd5();
+      hashes.add(md5);
+
+      if (!md5.equals(baseline.get(i))) {
+        Canvas tile = tiles.get(i);
+        changed.add(new Tile(new Canvas(tile.getX() - area.getX(), tile.getY() - area.getY(),
+                                        tile.getWidth(), tile.getHeight()), replies.get(i)));
+      }
+    }
+
+    this.hashes = hashes.build();
+    changedTiles = changed.build();
+  }
+
+  /**
+   * Divides an area into a grid of tiles, row by row.  Tiles at the right and bottom edges are
+   * clipped to the area.
+   *
+   * @param area     the area to divide
+   * @param tileSize the width and height of the tiles
+   * @return the tiles, in absolute coordinates
+   */
+  public static List<Canvas> tile(Canvas area, int tileSize) {
+    checkArgument(tileSize > 0, "Tile size must be positive");
+
+    List<Canvas> tiles = new ArrayList<Canvas>();
+    for (int y = 0; y < area.getHeight(); y += tileSize) {
+      for (int x = 0; x < area.getWidth(); x += tileSize) {
+        Canvas tile = new Canvas(area.getX() + x, area.getY() + y,
+                                 Math.min(tileSize, area.getWidth() - x),
+                                 Math.min(tileSize, area.getHeight() - y));
+        tile.setViewPortRelative(area.isViewPortRelative());
+        tiles.add(tile);
+      }
+    }
+
+    return tiles;
+  }
+
+  /**
+   * Gets the hashes to compare the tiles of an area against.
+   *
+   * @param baseline the baseline, or null if there is none
+   * @param area     the area to compare
+   * @param tileSize the width and height of the tiles
+   * @return the hash of each tile of the baseline, or nulls if the baseline can not be compared
+   *         tile by tile
+   */
+  public static List<String> getBaselineHashes(ScreenshotDiff baseline, Canvas area,
+                                               int tileSize) {
+    if (baseline != null && baseline.tileSize == tileSize && baseline.width == area.getWidth()
+        && baseline.height == area.getHeight()) {
+      return baseline.hashes;
+    }
+
+    return Collections.nCopies(tile(area, tileSize).size(), null);
+  }
+
+  public int getTileSize() {
+    return tileSize;
+  }
+
+  /**
+   * Gets the hashes of all tiles, row by row.
+   *
+   * @return the hashes
+   */
+  public List<String> getHashes() {
+    return hashes;
+  }
+
+  /**
+   * Gets the tiles which differ from the baseline.
+   *
+   * @return the changed tiles, row by row
+   */
+  public List<Tile> getChangedTiles() {
+    return changedTiles;
+  }
+
+  public boolean hasChanges() {
+    return !changedTiles.isEmpty();
+  }
+
+}
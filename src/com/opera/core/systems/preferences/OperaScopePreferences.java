@@ -16,6 +16,8 @@ limitations under the License.
 
 package com.opera.core.systems.preferences;
 
+import com.google.common.collect.ImmutableMap;
+
 import com.opera.core.systems.model.OperaColor;
 import com.opera.core.systems.scope.protos.PrefsProtos;
 import com.opera.core.systems.scope.services.IPrefs;
@@ -25,18 +27,42 @@ import org.openqa.selenium.support.Color;
 
 import java.io.File;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * OperaScopePreferences allows updating preferences inside Opera using the Scope protocol using the
  * common {@link OperaPreferences} interface.  The prefs service will be written to upon alteration
  * of any preference.
  *
+ * Opera has thousands of preferences, so they are fetched one section at a time when a preference
+ * of that section is first asked for.  All preferences are only fetched when iterating over them or
+ * counting them.  Changes made between {@link #startBatch()} and {@link #finishBatch()} are
+ * coalesced and written to Opera together when the batch is finished.
+ *
  * @see OperaFilePreferences
  */
 public class OperaScopePreferences extends AbstractOperaPreferences {
 
   protected IPrefs service;
 
+  /**
+   * The preferences fetched so far, keyed by their lower-cased section and key.
+   */
+  private final Map<String, Map<String, ScopePreference>> sections =
+      new HashMap<String, Map<String, ScopePreference>>();
+  private boolean complete = false;
+
+  private int batchDepth = 0;
+  private final Map<ScopePreference, String> batch = new LinkedHashMap<ScopePreference, String>();
+
   /**
    * Opera stores preferences in more field types than what is considered idiomatic to Java.  This
    * is a lookup enum for converting from Opera-specific field types to Java types.
@@ -67,7 +93,23 @@ public class OperaScopePreferences extends AbstractOperaPreferences {
 
   public OperaScopePreferences(IPrefs prefsService) {
     service = prefsService;
-    updatePreferenceCache();  // might be slow on cores without speed patch
+  }
+
+  @Override
+  public Iterator<OperaPreference> iterator() {
+    return all().iterator();
+  }
+
+  @Override
+  public Iterable<OperaPreference> all() {
+    fetchAll();
+    return Collections.unmodifiableCollection(preferences);
+  }
+
+  @Override
+  public int size() {
+    fetchAll();
+    return preferences.size();
   }
 
   public void set(OperaPreference preference) {
@@ -75,17 +117,14 @@ public class OperaScopePreferences extends AbstractOperaPreferences {
     // whether the preference passed into this method is a different type, e.g. GenericPreference,
     // since we have all preferences stored locally.
 
-    for (OperaPreference p : this) {
-      if (p.getSection().equalsIgnoreCase(preference.getSection()) &&
-          p.getKey().equalsIgnoreCase(preference.getKey())) {
-        if (!p.getValue().equals(preference.getValue())) {
-          p.setValue(((OperaGenericPreferences.GenericPreference) preference).getValue(true));
-        }
-        return;
-      }
+    ScopePreference p = get(preference.getSection(), preference.getKey());
+    if (p == null) {
+      throw new WebDriverException("Unknown preference: " + preference.toString());
     }
 
-    throw new WebDriverException("Unknown preference: " + preference.toString());
+    if (!p.getValue().equals(preference.getValue())) {
+      p.setValue(((OperaGenericPreferences.GenericPreference) preference).getValue(true));
+    }
   }
 
   public void set(String section, String key, Object value) {
@@ -93,35 +132,174 @@ public class OperaScopePreferences extends AbstractOperaPreferences {
   }
 
   public ScopePreference get(String section, String key) {
-    return (ScopePreference) super.get(section, key);
+    ScopePreference preference = fetchSection(section).get(key.toLowerCase());
+
+    // The section may have been asked for in a different case than Opera knows it by
+    if (preference == null && !complete) {
+      fetchAll();
+      preference = fetchSection(section).get(key.toLowerCase());
+    }
+
+    return preference;
   }
 
   /**
    * Resets all preferences' values to their default value.
    */
   public void resetAll() {
-    for (OperaPreference p : this) {
-      ((ScopePreference) p).reset();
+    startBatch();
+    try {
+      for (OperaPreference p : this) {
+        ((ScopePreference) p).reset();
+      }
+    } finally {
+      finishBatch();
+    }
+  }
+
+  /**
+   * Takes a snapshot of the values of all preferences fetched so far, as known to the local cache,
+   * so that they can later be brought back using {@link #restore(Map)}.  This does not communicate
+   * with Opera.
+   *
+   * @return the value of each preference, as sent to Opera
+   */
+  public Map<ScopePreference, String> snapshot() {
+    ImmutableMap.Builder<ScopePreference, String> values = ImmutableMap.builder();
+    for (OperaPreference p : preferences) {
+      ScopePreference preference = (ScopePreference) p;
+      values.put(preference, preference.getValue(true).toString());
+    }
+    return values.build();
+  }
+
+  /**
+   * Restores preferences to the values they had when a snapshot was taken.  Preferences fetched
+   * after the snapshot was taken are restored to the values they were fetched with.  Only the
+   * preferences whose value has been changed since are written to Opera, in one batch.
+   *
+   * @param snapshot a snapshot of this set of preferences, as returned by {@link #snapshot()}
+   */
+  public void restore(Map<ScopePreference, String> snapshot) {
+    startBatch();
+    try {
+      for (OperaPreference p : preferences) {
+        ScopePreference preference = (ScopePreference) p;
+        String value = snapshot.get(preference);
+        if (value == null) {
+          value = preference.pref.getValue();
+        }
+
+        if (!preference.getValue(true).toString().equals(value)) {
+          preference.setValue(value);
+        }
+      }
+    } finally {
+      finishBatch();
     }
   }
 
   /**
-   * Invalidates the preferences cache stored locally in the driver and requests a new list of all
-   * preferences from Opera.  This should typically only be called the first time {@link
-   * OperaScopePreferences} is instantiated.
+   * Starts coalescing changes to preferences.  Until the matching call to {@link #finishBatch()},
+   * changes are only made to the local cache, and only the last value given to each preference is
+   * written to Opera.  Batches may be nested, in which case changes are written when the outermost
+   * batch is finished.
+   */
+  public void startBatch() {
+    batchDepth++;
+  }
+
+  /**
+   * Finishes a batch started with {@link #startBatch()}.  If it is the outermost batch, all changed
+   * preferences are written to Opera without waiting for each one to be acknowledged.
+   */
+  public void finishBatch() {
+    if (batchDepth == 0 || --batchDepth > 0 || batch.isEmpty()) {
+      return;
+    }
+
+    List<PrefsProtos.SetPrefArg> changes = new ArrayList<PrefsProtos.SetPrefArg>(batch.size());
+    for (Map.Entry<ScopePreference, String> entry : batch.entrySet()) {
+      changes.add(PrefsProtos.SetPrefArg.newBuilder()
+                      .setSection(entry.getKey().getSection())
+                      .setKey(entry.getKey().getKey())
+                      .setValue(entry.getValue())
+                      .build());
+    }
+    batch.clear();
+
+    service.setPrefs(changes);
+  }
+
+  /**
+   * Gets the preferences of a section, fetching them from Opera unless they have been already.
    *
-   * Following that, whenever a preference is updated the driver will be responsible for keeping the
-   * local cache up-to-date.  The drawback of this is that if the user manually updates a preference
-   * in Opera, this will not be reflected when {@link ScopePreference#getValue()} is run.  We
-   * circumvent that issue by fetching the value individually.
+   * @param section the name of the section, in any case
+   * @return the preferences of the section keyed by their lower-cased keys, or an empty map if
+   *         Opera does not know the section
+   */
+  private Map<String, ScopePreference> fetchSection(String section) {
+    Map<String, ScopePreference> keys = sections.get(section.toLowerCase());
+    if (keys != null || complete) {
+      return keys != null ? keys : Collections.<String, ScopePreference>emptyMap();
+    }
+
+    List<PrefsProtos.Pref> prefs;
+    try {
+      prefs = service.listPrefs(true, section);
+    } catch (WebDriverException e) {
+      // Unknown sections are reported as errors by some versions of Opera
+      prefs = Collections.emptyList();
+    }
+
+    for (PrefsProtos.Pref pref : prefs) {
+      add(pref);
+    }
+
+    keys = sections.get(section.toLowerCase());
+    return keys != null ? keys : Collections.<String, ScopePreference>emptyMap();
+  }
+
+  /**
+   * Fetches all preferences that have not already been fetched from Opera.  The drawback of
+   * caching preferences locally is that if the user manually updates a preference in Opera, this
+   * will not be reflected when {@link ScopePreference#getValue()} is run.
    *
    * The reason for this is that we cannot fetch a single message "Pref" through Scope, but only
    * individual values.
    */
-  private void updatePreferenceCache() {
+  private void fetchAll() {
+    if (complete) {
+      return;
+    }
+
+    // Keep the preferences already fetched, as they may have been changed since
+    Set<OperaPreference> ordered = new LinkedHashSet<OperaPreference>();
     for (PrefsProtos.Pref pref : service.listPrefs(true, null)) {
-      preferences.add(new ScopePreference(this, pref));
+      ScopePreference preference = lookup(pref.getSection(), pref.getKey());
+      ordered.add(preference != null ? preference : add(pref));
     }
+
+    preferences = ordered;
+    complete = true;
+  }
+
+  private ScopePreference lookup(String section, String key) {
+    Map<String, ScopePreference> keys = sections.get(section.toLowerCase());
+    return keys != null ? keys.get(key.toLowerCase()) : null;
+  }
+
+  private ScopePreference add(PrefsProtos.Pref pref) {
+    Map<String, ScopePreference> keys = sections.get(pref.getSection().toLowerCase());
+    if (keys == null) {
+      keys = new HashMap<String, ScopePreference>();
+      sections.put(pref.getSection().toLowerCase(), keys);
+    }
+
+    ScopePreference preference = new ScopePreference(this, pref);
+    keys.put(pref.getKey().toLowerCase(), preference);
+    preferences.add(preference);
+    return preference;
   }
 
   /**
@@ -172,7 +350,12 @@ public class OperaScopePreferences extends AbstractOperaPreferences {
     @Override
     public void setValue(Object value) {
       super.setValue(value);  // update cache
-      parent.service.setPrefs(getSection(), getKey(), super.getValue(true).toString());
+
+      if (parent.batchDepth > 0) {
+        parent.batch.put(this, super.getValue(true).toString());
+      } else {
+        parent.service.setPrefs(getSection(), getKey(), super.getValue(true).toString());
+      }
     }
 
     @Override
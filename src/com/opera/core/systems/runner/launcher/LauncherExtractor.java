@@ -0,0 +1,229 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.runner.launcher;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import com.opera.core.systems.common.io.Closeables;
+import com.opera.core.systems.runner.OperaRunnerException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Keeps an extracted copy of a bundled launcher up to date on disk.
+ *
+ * The MD5 hash of the bundled launcher is only computed once.  Next to the extracted launcher we
+ * keep a small manifest with its hash, size and modification time, so that as long as the size and
+ * modification time of the file on disk match the manifest, it is known to be up to date without
+ * reading it.
+ *
+ * A new launcher is written to a temporary file which then replaces the old one, while holding a
+ * lock on a file next to it.  This prevents several drivers, in this or in other processes, from
+ * writing to the same launcher at the same time.
+ */
+public class LauncherExtractor {
+
+  private static final Logger logger = Logger.getLogger(LauncherExtractor.class.getName());
+
+  private static final String MANIFEST_SUFFIX = ".manifest";
+  private static final String LOCK_SUFFIX = ".lock";
+  private static final String MD5 = "md5";
+  private static final String SIZE = "size";
+  private static final String MODIFIED = "modified";
+
+  /**
+   * File locks are held by the process, so threads of this process must be kept apart separately.
+   */
+  private static final Object extractionLock = new Object();
+
+  private final URL source;
+  private String digest = null;
+
+  /**
+   * @param source the location of the bundled launcher
+   */
+  public LauncherExtractor(URL source) {
+    this.source = checkNotNull(source);
+  }
+
+  /**
+   * Gets the MD5 hash of the bundled launcher, computing it the first time.
+   *
+   * @return the hexadecimal MD5 hash of the bundled launcher
+   */
+  public synchronized String getDigest() {
+    if (digest == null) {
+      try {
+        digest = ByteStreams.hash(Resources.newInputStreamSupplier(source), Hashing.md5())
+            .toString();
+      } catch (IOException e) {
+        throw new OperaRunnerException("Unable to read bundled launcher: " + e.getMessage());
+      }
+    }
+
+    return digest;
+  }
+
+  /**
+   * Whether the given file is a copy of the bundled launcher according to its manifest.  The file
+   * itself is not read.
+   *
+   * @param target the extracted launcher
+   * @return true if the file is up to date, false otherwise
+   */
+  public boolean isCurrent(File target) {
+    Properties manifest = readManifest(target);
+    return manifest != null && target.isFile() &&
+           String.valueOf(target.length()).equals(manifest.getProperty(SIZE)) &&
+           String.valueOf(target.lastModified()).equals(manifest.getProperty(MODIFIED)) &&
+           getDigest().equals(manifest.getProperty(MD5));
+  }
+
+  /**
+   * Extracts the bundled launcher to the given file, unless it is already up to date.
+   *
+   * @param target where to extract the launcher to
+   */
+  public void extractTo(File target) {
+    if (isCurrent(target)) {
+      return;
+    }
+
+    File directory = target.getAbsoluteFile().getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new OperaRunnerException("Unable to create directory: " + directory.getPath());
+    }
+
+    synchronized (extractionLock) {
+      RandomAccessFile lockFile = null;
+      FileLock lock = null;
+
+      try {
+        lockFile = new RandomAccessFile(new File(directory, target.getName() + LOCK_SUFFIX), "rw");
+        lock = lockFile.getChannel().lock();
+
+        // Another driver may have extracted it while we were waiting for the lock
+        if (isCurrent(target)) {
+          return;
+        }
+
+        // A launcher extracted before manifests were kept only needs to be hashed once
+        if (!target.isFile() || !Files.hash(target, Hashing.md5()).toString().equals(getDigest())) {
+          replace(target);
+        }
+
+        writeManifest(target);
+      } catch (IOException e) {
+        throw new OperaRunnerException("Cannot write file to disk: " + e.getMessage());
+      } finally {
+        if (lock != null) {
+          try {
+            lock.release();
+          } catch (IOException e) {
+            // closing the file releases it too
+          }
+        }
+        if (lockFile != null) {
+          Closeables.closeQuietly(lockFile);
+        }
+      }
+    }
+  }
+
+  private void replace(File target) throws IOException {
+    File temporary = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+
+    InputStream is = null;
+    OutputStream os = null;
+    try {
+      is = source.openStream();
+      os = new FileOutputStream(temporary);
+      ByteStreams.copy(is, os);
+    } finally {
+      if (is != null) {
+        Closeables.closeQuietly(is);
+      }
+      if (os != null) {
+        Closeables.closeQuietly(os);
+      }
+    }
+
+    temporary.setExecutable(true);
+
+    // Renaming onto an existing file fails on Windows
+    if (!temporary.renameTo(target) && !(target.delete() && temporary.renameTo(target))) {
+      temporary.delete();
+      throw new IOException("Unable to replace " + target.getPath());
+    }
+
+    logger.fine("New launcher copied to " + target.getPath());
+  }
+
+  private Properties readManifest(File target) {
+    File file = new File(target.getPath() + MANIFEST_SUFFIX);
+    if (!file.isFile()) {
+      return null;
+    }
+
+    InputStream is = null;
+    try {
+      is = new FileInputStream(file);
+      Properties manifest = new Properties();
+      manifest.load(is);
+      return manifest;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      if (is != null) {
+        Closeables.closeQuietly(is);
+      }
+    }
+  }
+
+  private void writeManifest(File target) throws IOException {
+    Properties manifest = new Properties();
+    manifest.setProperty(MD5, getDigest());
+    manifest.setProperty(SIZE, String.valueOf(target.length()));
+    manifest.setProperty(MODIFIED, String.valueOf(target.lastModified()));
+
+    OutputStream os = null;
+    try {
+      os = new FileOutputStream(target.getPath() + MANIFEST_SUFFIX);
+      manifest.store(os, "Bundled launcher extracted by OperaDriver");
+    } finally {
+      if (os != null) {
+        Closeables.closeQuietly(os);
+      }
+    }
+  }
+
+}
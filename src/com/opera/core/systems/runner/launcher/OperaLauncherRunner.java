@@ -17,9 +17,6 @@ limitations under the License.
 package com.opera.core.systems.runner.launcher;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.hash.Hashing;
-import com.google.common.io.ByteStreams;
-import com.google.common.io.Files;
 import com.google.protobuf.GeneratedMessage;
 
 import com.opera.core.systems.OperaBinary;
@@ -49,20 +46,13 @@ import org.openqa.selenium.io.FileHandler;
 import org.openqa.selenium.net.PortProber;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
 /**
  * OperaLauncherRunner implements an interface in C++ with a Java API for controlling the Opera
  * binary.
@@ -76,6 +66,8 @@ public class OperaLauncherRunner extends OperaRunner
       new File(System.getProperty("user.home"), ".launcher");
   public static final File LAUNCHER_DEFAULT_LOCATION = new File(LAUNCHER_DIRECTORY, LAUNCHER_NAME);
 
+  private static LauncherExtractor launcherExtractor = null;
+
   private final URL bundledLauncher;
   private final int launcherPort = PortProber.findFreePort();
   private final List<String> arguments;
@@ -103,9 +95,8 @@ public class OperaLauncherRunner extends OperaRunner
 
     File launcher = settings.getLauncher();
     try {
-      if (settings.getLauncher().getCanonicalPath().equals(LAUNCHER_DEFAULT_LOCATION.getCanonicalPath()) &&
-          (!settings.getLauncher().exists() || isLauncherOutdated(launcher))) {
-        extractLauncher(bundledLauncher, settings.getLauncher());
+      if (launcher.getCanonicalPath().equals(LAUNCHER_DEFAULT_LOCATION.getCanonicalPath())) {
+        getLauncherExtractor(bundledLauncher).extractTo(launcher);
       }
     } catch (IOException e) {
       throw new OperaRunnerException(e);
@@ -443,47 +434,18 @@ public class OperaLauncherRunner extends OperaRunner
     return status;
   }
 
-  private void extractLauncher(URL sourceLauncher, File targetLauncher) {
-    checkNotNull(sourceLauncher);
-    checkNotNull(targetLauncher);
-
-    InputStream is = null;
-    OutputStream os = null;
-
-    try {
-      targetLauncher.getParentFile().mkdirs();
-
-      if (!targetLauncher.exists()) {
-        Files.touch(targetLauncher);
-      }
-
-      is = sourceLauncher.openStream();
-      os = new FileOutputStream(targetLauncher);
-
-      ByteStreams.copy(is, os);
-    } catch (IOException e) {
-      throw new OperaRunnerException("Cannot write file to disk: " + e.getMessage());
-    } finally {
-      if (is != null) {
-        Closeables.closeQuietly(is);
-      }
-      if (os != null) {
-        Closeables.closeQuietly(os);
-      }
-    }
-
-    logger.fine("New launcher copied to " + targetLauncher.getPath());
-  }
-
-  private boolean isLauncherOutdated(File launcher) {
-    try {
-      return !Arrays.equals(md5(bundledLauncher.openStream()), md5(launcher));
-    } catch (NoSuchAlgorithmException e) {
-      throw new OperaRunnerException(
-          "Algorithm is not available in your environment: " + e.getMessage());
-    } catch (IOException e) {
-      throw new OperaRunnerException("Unable to open stream or file: " + e.getMessage());
+  /**
+   * Gets the extractor of the bundled launcher, which is shared by all runners so that the bundled
+   * launcher is only hashed once.
+   *
+   * @param bundledLauncher the location of the bundled launcher
+   * @return the extractor for the bundled launcher
+   */
+  private static synchronized LauncherExtractor getLauncherExtractor(URL bundledLauncher) {
+    if (launcherExtractor == null) {
+      launcherExtractor = new LauncherExtractor(bundledLauncher);
     }
+    return launcherExtractor;
   }
 
   private void assertLauncherAlive() {
@@ -546,32 +508,6 @@ public class OperaLauncherRunner extends OperaRunner
     }
   }
 
-  /**
-   * Get the MD5 hash of the given stream.
-   *
-   * @param fis the input stream to use
-   * @return a byte array of the MD5 hash
-   * @throws java.security.NoSuchAlgorithmException
-   *                     if MD5 is not available
-   * @throws IOException if an I/O error occurs
-   */
-  private static byte[] md5(InputStream fis) throws NoSuchAlgorithmException, IOException {
-    return ByteStreams.hash(ByteStreams.newInputStreamSupplier(ByteStreams.toByteArray(fis)),
-                            Hashing.md5()).asBytes();
-  }
-
-  /**
-   * Get the MD5 hash of the given file.
-   *
-   * @param file file to compute a hash on
-   * @return a byte array of the MD5 hash
-   * @throws IOException              if file cannot be found
-   * @throws NoSuchAlgorithmException if MD5 is not available
-   */
-  private static byte[] md5(File file) throws NoSuchAlgorithmException, IOException {
-    return Files.hash(file, Hashing.md5()).asBytes();
-  }
-
   /**
    * The launcher allows for the following logging levels: "FINEST", "FINE", "INFO", "WARNING",
    * "SEVERE".  Since the launcher is unusually chatty, we don't want it to use the same logging
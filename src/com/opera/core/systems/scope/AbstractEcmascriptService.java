@@ -16,6 +16,7 @@ limitations under the License.
 
 package com.opera.core.systems.scope;
 
+import com.opera.core.systems.OperaAtom;
 import com.opera.core.systems.OperaDriver;
 import com.opera.core.systems.ScopeServices;
 import com.opera.core.systems.model.RuntimeNode;
@@ -23,13 +24,17 @@ import com.opera.core.systems.scope.internal.OperaIntervals;
 import com.opera.core.systems.scope.services.IEcmaScriptDebugger;
 import com.opera.core.systems.scope.services.IWindowManager;
 
+import org.openqa.selenium.InvalidSelectorException;
+import org.openqa.selenium.StaleElementReferenceException;
 import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.WebElement;
 
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import static com.opera.core.systems.scope.internal.OperaIntervals.SCRIPT_RETRY_INTERVAL;
 
@@ -67,6 +72,11 @@ public abstract class AbstractEcmascriptService extends AbstractService
 
   protected RuntimeNode root;
 
+  /**
+   * The atoms we have installed in each runtime.
+   */
+  private final AtomRegistry atoms = new AtomRegistry();
+
   public AbstractEcmascriptService(ScopeServices services, String version) {
     super(services, version);
     services.setDebugger(this);
@@ -199,6 +209,105 @@ public abstract class AbstractEcmascriptService extends AbstractService
     return canParse;
   }
 
+  /**
+   * Executes a script in the given runtime.
+   *
+   * @param using            the script to execute
+   * @param responseExpected whether to parse the response
+   * @param runtimeId        the runtime to execute the script in
+   * @return the parsed result if a response is expected, null otherwise
+   */
+  protected abstract Object executeScript(String using, boolean responseExpected, int runtimeId);
+
+  /**
+   * Gets the object ID of a parsed script result.
+   *
+   * @param result a result as returned by {@link #executeScript(String, boolean)}
+   * @return the object ID, or null if the result is not an object
+   */
+  protected abstract Integer getObjectId(Object result);
+
+  public Integer findElement(String using, Integer objectId) {
+    // Strings are never returned by the locator atoms, so they are used to report failures.  The
+    // inner function closes over "locator", so the locator script can use it as usual.  The atoms
+    // throw their errors, so these have to be caught here rather than surfacing as an exception
+    // from the evaluation.  If the atoms the script uses are missing, the error is not the
+    // selector's fault, so it is thrown on to let the evaluation install them and try again.
+    Set<OperaAtom> used = AtomRegistry.referencedBy(using);
+    String rethrow = used.isEmpty() ? "" : "if(!(" + AtomRegistry.presenceTest(used) + "))throw e;";
+    String script = "try{var r=(function(){" + using + "})();}"
+                    + "catch(e){" + rethrow + "return 'E'+e.message;}"
+                    + "if(r instanceof Error)return 'E'+r.message;"
+                    + "if(r&&r.parentNode==undefined)return 'S';"
+                    + "return r;";
+
+    Object result = (objectId == null) ? executeScript(script, true)
+                                       : callFunctionOnObject(script, objectId, true);
+
+    if (result instanceof String) {
+      String failure = (String) result;
+      if (failure.startsWith("E")) {
+        throw new InvalidSelectorException(failure.substring(1));
+      }
+      throw new StaleElementReferenceException("This element is no longer part of DOM");
+    }
+
+    return getObjectId(result);
+  }
+
+  public String getAtom(OperaAtom atom) {
+    int runtimeId = getRuntimeId();
+
+    if (atoms.markInstalled(runtimeId, atom)) {
+      try {
+        executeScript(AtomRegistry.installScript(EnumSet.of(atom)), false, runtimeId);
+      } catch (WebDriverException e) {
+        atoms.invalidate(runtimeId);
+        throw e;
+      }
+    }
+
+    return AtomRegistry.reference(atom);
+  }
+
+  /**
+   * Forgets which atoms have been installed in the given runtime, for instance because its global
+   * object has been replaced.
+   *
+   * @param runtimeId the runtime
+   */
+  protected void invalidateAtoms(int runtimeId) {
+    atoms.invalidate(runtimeId);
+  }
+
+  /**
+   * Called when a script has thrown an exception.  If the script refers to atoms which are missing
+   * from the runtime (because we missed an event telling us that its global object was replaced),
+   * they are installed again.
+   *
+   * @param script    the script which failed
+   * @param runtimeId the runtime the script was executed in
+   * @return true if atoms were installed and the script should be retried, false otherwise
+   */
+  protected boolean installMissingAtoms(String script, int runtimeId) {
+    Set<OperaAtom> used = AtomRegistry.referencedBy(script);
+    if (used.isEmpty()) {
+      return false;
+    }
+
+    if (Boolean.TRUE.equals(executeScript(AtomRegistry.presenceCheck(used), true, runtimeId))) {
+      // The atoms are there, so the exception came from the script itself
+      return false;
+    }
+
+    atoms.invalidate(runtimeId);
+    for (OperaAtom atom : used) {
+      atoms.markInstalled(runtimeId, atom);
+    }
+
+    return Boolean.TRUE.equals(executeScript(AtomRegistry.installScript(used), true, runtimeId));
+  }
+
   public void cleanUpRuntimes() {
     int windowId = windowManager.getActiveWindowId();
     cleanUpRuntimes(windowId);
@@ -16,6 +16,8 @@ limitations under the License.
 
 package com.opera.core.systems.scope;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.AbstractMessage.Builder;
 import com.google.protobuf.GeneratedMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -88,6 +90,18 @@ public abstract class AbstractService {
     return services.executeCommand(command, builder, timeout);
   }
 
+  /**
+   * Sends a command without blocking on its response.  See {@link
+   * ScopeServices#executeCommandAsync(ICommand, Builder)}.
+   */
+  public ListenableFuture<Response> executeCommandAsync(ICommand command, Builder<?> builder) {
+    if (services.getConnection() == null) {
+      return Futures.immediateFuture(Response.getDefaultInstance());
+    }
+
+    return services.executeCommandAsync(command, builder);
+  }
+
   /**
    * Query a collection with JXPath and return value of node.
    *
@@ -0,0 +1,177 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope;
+
+import com.opera.core.systems.OperaAtom;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track of which {@link OperaAtom}s have been installed in which ECMAScript runtimes.
+ *
+ * The atoms are several kilobytes of script each.  Rather than sending the full source with every
+ * evaluation, each atom is installed once per runtime as a property of a hidden (non-enumerable)
+ * global object, {@link #GLOBAL}, and later scripts only refer to it by {@link
+ * #reference(OperaAtom)}.  A runtime's entry must be invalidated when its global object is replaced
+ * or the runtime goes away.
+ */
+public class AtomRegistry {
+
+  /**
+   * Name of the global object the atoms are installed on.
+   */
+  public static final String GLOBAL = "__webdriver_atoms";
+
+  private final ConcurrentMap<Integer, Set<OperaAtom>> installed =
+      new ConcurrentHashMap<Integer, Set<OperaAtom>>();
+
+  /**
+   * Marks an atom as installed in the given runtime.
+   *
+   * @param runtimeId the runtime the atom is installed in
+   * @param atom      the atom
+   * @return true if the atom was not installed in the runtime before, and the caller must install
+   *         it
+   */
+  public boolean markInstalled(int runtimeId, OperaAtom atom) {
+    Set<OperaAtom> atoms = installed.get(runtimeId);
+
+    if (atoms == null) {
+      Set<OperaAtom> created = Collections.synchronizedSet(EnumSet.noneOf(OperaAtom.class));
+      atoms = installed.putIfAbsent(runtimeId, created);
+      if (atoms == null) {
+        atoms = created;
+      }
+    }
+
+    return atoms.add(atom);
+  }
+
+  public boolean isInstalled(int runtimeId, OperaAtom atom) {
+    Set<OperaAtom> atoms = installed.get(runtimeId);
+    return atoms != null && atoms.contains(atom);
+  }
+
+  /**
+   * Forgets all atoms installed in the given runtime.
+   *
+   * @param runtimeId the runtime
+   */
+  public void invalidate(int runtimeId) {
+    installed.remove(runtimeId);
+  }
+
+  /**
+   * Returns the expression referring to an installed atom.
+   *
+   * @param atom the atom
+   * @return an ECMAScript expression evaluating to the atom function
+   */
+  public static String reference(OperaAtom atom) {
+    return GLOBAL + "." + atom.name();
+  }
+
+  /**
+   * Returns a script which installs the given atoms in the runtime it is evaluated in, and
+   * returns true.
+   *
+   * @param atoms the atoms to install
+   * @return the install script
+   */
+  public static String installScript(Iterable<OperaAtom> atoms) {
+    StringBuilder script = new StringBuilder();
+    script.append("var w=window,a=w['").append(GLOBAL).append("'];")
+        .append("if(!a){a={};")
+        .append("try{Object.defineProperty(w,'").append(GLOBAL).append("',{value:a});}")
+        .append("catch(e){w['").append(GLOBAL).append("']=a;}}");
+
+    for (OperaAtom atom : atoms) {
+      script.append("a['").append(atom.name()).append("']=").append(atom.getValue()).append(";");
+    }
+
+    return script.append("return true;").toString();
+  }
+
+  /**
+   * Returns a script evaluating to true if all of the given atoms are installed in the runtime it
+   * is evaluated in.
+   *
+   * @param atoms the atoms to look for
+   * @return the check script
+   */
+  public static String presenceCheck(Iterable<OperaAtom> atoms) {
+    return "return " + presenceTest(atoms) + ";";
+  }
+
+  /**
+   * Returns an expression which is true if all of the given atoms are installed in the runtime it
+   * is evaluated in, for use within a larger script.
+   *
+   * @param atoms the atoms to look for
+   * @return the check expression
+   */
+  public static String presenceTest(Iterable<OperaAtom> atoms) {
+    String global = "window['" + GLOBAL + "']";
+    StringBuilder test = new StringBuilder();
+    test.append("!!").append(global);
+
+    for (OperaAtom atom : atoms) {
+      test.append("&&typeof ").append(global).append("['").append(atom.name())
+          .append("']=='function'");
+    }
+
+    return test.toString();
+  }
+
+  /**
+   * Finds the atoms a script refers to using {@link #reference(OperaAtom)}.
+   *
+   * @param script the script
+   * @return the atoms referred to, possibly none
+   */
+  public static Set<OperaAtom> referencedBy(String script) {
+    Set<OperaAtom> atoms = EnumSet.noneOf(OperaAtom.class);
+    String prefix = GLOBAL + ".";
+
+    for (int index = script.indexOf(prefix); index != -1;
+         index = script.indexOf(prefix, index + 1)) {
+      int start = index + prefix.length();
+      int end = start;
+
+      while (end < script.length() && isAtomNameChar(script.charAt(end))) {
+        end++;
+      }
+
+      try {
+        atoms.add(OperaAtom.valueOf(script.substring(start, end)));
+      } catch (IllegalArgumentException e) {
+        // Not one of ours
+      }
+    }
+
+    return atoms;
+  }
+
+  private static boolean isAtomNameChar(char c) {
+    return (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+  }
+
+}
@@ -0,0 +1,127 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of which ECMAScript object IDs are still in use by objects on our side, such as
+ * {@link com.opera.core.systems.OperaWebElement}s, so that they can be released in Opera once they
+ * are not.
+ *
+ * Several owners may hold the same object ID, so the owners of each ID are counted, and the ID is
+ * only released when the last one of them has been garbage collected.  Owners are tracked with
+ * phantom references rather than finalizers, which keeps them cheap to collect.
+ */
+public class ObjectHandleTable {
+
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+  /**
+   * The live owners of each object ID.  This also keeps the references themselves reachable until
+   * they have been enqueued.
+   */
+  private final Map<Integer, Set<Handle>> owners = new HashMap<Integer, Set<Handle>>();
+  private final Set<Integer> releasable = new LinkedHashSet<Integer>();
+
+  private static final class Handle extends PhantomReference<Object> {
+
+    private final int objectId;
+
+    Handle(Object owner, int objectId, ReferenceQueue<Object> queue) {
+      super(owner, queue);
+      this.objectId = objectId;
+    }
+
+  }
+
+  /**
+   * Starts tracking an owner of the given object ID.  The ID will not be released until the owner
+   * has been garbage collected.
+   *
+   * @param owner    the object holding the ID
+   * @param objectId the ECMAScript object ID
+   */
+  public synchronized void track(Object owner, int objectId) {
+    Set<Handle> handles = owners.get(objectId);
+    if (handles == null) {
+      handles = new HashSet<Handle>();
+      owners.put(objectId, handles);
+    }
+
+    handles.add(new Handle(owner, objectId, queue));
+    releasable.remove(objectId);
+  }
+
+  /**
+   * Marks an object ID as releasable regardless of its owners.
+   *
+   * @param objectId the ECMAScript object ID
+   */
+  public synchronized void release(int objectId) {
+    owners.remove(objectId);
+    releasable.add(objectId);
+  }
+
+  /**
+   * Gets object IDs which no longer have any owners, and forgets about them.
+   *
+   * @param max the maximum number of IDs to return
+   * @return up to <code>max</code> IDs which should be released in Opera
+   */
+  public synchronized List<Integer> collect(int max) {
+    for (Reference<?> reference = queue.poll(); reference != null; reference = queue.poll()) {
+      Handle handle = (Handle) reference;
+      Set<Handle> handles = owners.get(handle.objectId);
+
+      // The ID may have been released (and even handed out again) since the owner was tracked
+      if (handles != null && handles.remove(handle) && handles.isEmpty()) {
+        owners.remove(handle.objectId);
+        releasable.add(handle.objectId);
+      }
+    }
+
+    List<Integer> ids = new ArrayList<Integer>(Math.min(max, releasable.size()));
+    for (Iterator<Integer> iterator = releasable.iterator();
+         iterator.hasNext() && ids.size() < max; ) {
+      ids.add(iterator.next());
+      iterator.remove();
+    }
+
+    return ids;
+  }
+
+  /**
+   * Forgets about all object IDs, for instance because all objects have been released in Opera.
+   * Owners which are still alive are no longer tracked.
+   */
+  public synchronized void clear() {
+    owners.clear();
+    releasable.clear();
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A bounded cache of screenshots keyed by their MD5 hash.
+ *
+ * The screen watcher does not send the image if its hash matches one of the hashes we already
+ * know, so by passing the hashes of cached screenshots along with every screen watcher, an
+ * unchanged area can be served from the cache rather than transferred again.  The least recently
+ * used screenshots are evicted when either the number of screenshots or their total size exceeds
+ * the cache's limits.
+ */
+public class ScreenshotCache {
+
+  private final int maxEntries;
+  private final long maxBytes;
+  private final LinkedHashMap<String, ByteString> images =
+      new LinkedHashMap<String, ByteString>(16, 0.75f, true);
+  private long bytes;
+
+  /**
+   * @param maxEntries the maximum number of screenshots to keep
+   * @param maxBytes   the maximum total size in bytes of the screenshots to keep
+   */
+  public ScreenshotCache(int maxEntries, long maxBytes) {
+    checkArgument(maxEntries > 0, "The cache must be able to hold at least one screenshot");
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Gets a cached screenshot.
+   *
+   * @param md5 the hash of the screenshot
+   * @return the PNG data of the screenshot, or null if it is not cached
+   */
+  public synchronized ByteString get(String md5) {
+    return images.get(md5);
+  }
+
+  /**
+   * Caches a screenshot, evicting the least recently used ones if necessary.  Screenshots larger
+   * than the size limit of the cache are not cached.
+   *
+   * @param md5 the hash of the screenshot
+   * @param png the PNG data of the screenshot
+   */
+  public synchronized void put(String md5, ByteString png) {
+    if (png.size() > maxBytes) {
+      return;
+    }
+
+    ByteString previous = images.put(md5, png);
+    if (previous != null) {
+      bytes -= previous.size();
+    }
+    bytes += png.size();
+
+    Iterator<Map.Entry<String, ByteString>> iterator = images.entrySet().iterator();
+    while ((images.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+      bytes -= iterator.next().getValue().size();
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Gets the hashes of all cached screenshots.
+   *
+   * @return the hashes, least recently used first
+   */
+  public synchronized List<String> hashes() {
+    return ImmutableList.copyOf(images.keySet());
+  }
+
+  public synchronized void clear() {
+    images.clear();
+    bytes = 0;
+  }
+
+}
@@ -86,8 +86,16 @@ public class ScopeEventHandler implements EventHandler {
     services.getWindowManager().addWindow(info);
   }
 
+  /**
+   * Console messages are only used to signal that asynchronous scripts are done, all other
+   * messages are ignored.
+   */
   public void onMessage(ConsoleMessage message) {
-    throw new UnsupportedOperationException();
+    String description = message.getDescription();
+    if (description.startsWith(ScopeServices.SCRIPT_CALLBACK_PREFIX)) {
+      services.onScriptCallback(
+          description.substring(ScopeServices.SCRIPT_CALLBACK_PREFIX.length()));
+    }
   }
 
   public void onHttpResponse(int responseCode) {
@@ -96,6 +104,7 @@ public class ScopeEventHandler implements EventHandler {
 
   public void onReadyStateChange(ReadyStateChange change) {
     services.getDebugger().readyStateChanged(change);
+    services.onReadyStateChange(change);
   }
 
   public void onDesktopWindowShown(DesktopWindowInfo info) {
@@ -48,12 +48,25 @@ public enum OperaIntervals {
    */
   PAGE_LOAD_TIMEOUT(new Duration(30, SECONDS)),
 
+  /**
+   * After an action which may cause a navigation, how long to wait for a new document to start
+   * loading before assuming that the action did not navigate.
+   */
+  PAGE_LOAD_START_TIMEOUT(new Duration(5, MILLISECONDS)),
+
   /**
    * The default poll interval for queries that are made across a network.  Sleep intervals are not
    * needed for local polling, but we don't want to spam the network.
    */
   POLL_INTERVAL(new Duration(10, MILLISECONDS)),
 
+  /**
+   * When waiting for a condition on the document and Opera reports no activity which may have
+   * changed it, the interval between attempts is doubled from {@link #POLL_INTERVAL} up to this
+   * limit.  Activity such as a ready state change resets the interval and wakes the waiter at once.
+   */
+  POLL_INTERVAL_LIMIT(new Duration(100, MILLISECONDS)),
+
   WINDOW_EVENT_TIMEOUT(new Duration(5, SECONDS)),
   OPERA_IDLE_TIMEOUT(new Duration(5, SECONDS)),
 
@@ -90,6 +103,12 @@ public enum OperaIntervals {
    */
   SCRIPT_RETRY_INTERVAL(new Duration(50, MILLISECONDS)),
 
+  /**
+   * The minimum interval between releasing ECMAScript objects which are no longer referenced by
+   * any element, so that the releases of many elements are sent in one batch.
+   */
+  OBJECT_RELEASE_INTERVAL(new Duration(1, SECONDS)),
+
   /**
    * After starting the launcher we need to wait for the launcher to connect to our listener.  If
    * the launcher does not connect within this timeout, we assume something has gone wrong.
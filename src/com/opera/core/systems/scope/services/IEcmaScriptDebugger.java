@@ -16,6 +16,7 @@ limitations under the License.
 
 package com.opera.core.systems.scope.services;
 
+import com.opera.core.systems.OperaAtom;
 import com.opera.core.systems.OperaDriver;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ReadyStateChange;
 import com.opera.core.systems.scope.protos.EsdbgProtos.RuntimeInfo;
@@ -111,6 +112,41 @@ public interface IEcmaScriptDebugger {
 
   Integer executeScriptOnObject(String using, int objectId);
 
+  /**
+   * Executes several scripts on/using an object, sending all of them before waiting for any of the
+   * responses.  The scripts must not depend on each other's side effects.
+   *
+   * @param objectId the object to be used for injection, referenced as "locator" in the scripts
+   * @param scripts  scripts with reference to the object "locator"
+   * @return the parsed result of each script, in the order they were given
+   */
+  List<Object> callFunctionsOnObject(int objectId, String... scripts);
+
+  /**
+   * Finds an element in a single round-trip.  The locator script is evaluated, and the result is
+   * checked for selector errors and staleness in the same evaluation.
+   *
+   * @param using    script returning the element, or an Error if the selector is invalid
+   * @param objectId the object to be used for injection, referenced as "locator" in the script, or
+   *                 null to evaluate the script in the global scope
+   * @return the object ID of the element, or null if no element was found
+   * @throws org.openqa.selenium.InvalidSelectorException
+   *          if the script returned an Error
+   * @throws org.openqa.selenium.StaleElementReferenceException
+   *          if the element found is not part of the DOM
+   */
+  Integer findElement(String using, Integer objectId);
+
+  /**
+   * Gets an expression referring to the given atom in the current runtime.  The atom is installed
+   * in the runtime the first time it is used there, so that scripts calling it do not need to
+   * include its source.
+   *
+   * @param atom the atom to refer to
+   * @return an ECMAScript expression evaluating to the atom function
+   */
+  String getAtom(OperaAtom atom);
+
   /**
    * Changes the frame by index
    */
@@ -173,6 +209,15 @@ public interface IEcmaScriptDebugger {
    */
   void releaseObject(int objectId);
 
+  /**
+   * Registers an owner of an object ID, such as a web element.  The object is released once all of
+   * its owners have been garbage collected.
+   *
+   * @param owner    the object holding the ID
+   * @param objectId Id of the object
+   */
+  void trackObject(Object owner, int objectId);
+
   void resetFramePath();
 
   String executeJavascript(String using, Integer windowId);
@@ -21,6 +21,7 @@ import com.opera.core.systems.model.ScreenShotReply;
 import com.opera.core.systems.scope.internal.OperaColors;
 import com.opera.core.systems.scope.internal.OperaMouseKeys;
 
+import java.util.List;
 import java.util.Set;
 
 public interface IOperaExec {
@@ -28,8 +29,8 @@ public interface IOperaExec {
   void init();
 
   /**
-   * Type a string, preserving space, sent to active window This command doesn't return a response
-   * in STP/0 hence we sleep to be on the safe side.
+   * Type a string, preserving space, sent to active window.  The key presses for the whole string
+   * are sent in a single command.
    */
   void type(String using);
 
@@ -83,6 +84,23 @@ public interface IOperaExec {
    */
   void releaseKeys();
 
+  /**
+   * Starts collecting key presses, typing and mouse actions into a batch.  Until {@link
+   * #finishBatch()} is called, they are sent to Opera in order without waiting for each one to be
+   * acknowledged.  Batches may be nested, in which case only the outermost one has any effect.
+   */
+  void startBatch();
+
+  /**
+   * Finishes the current batch, waiting for Opera to acknowledge all of its actions.  Errors are
+   * treated the same as they would have been outside of a batch, so an action whose errors are
+   * ignored when performed on its own does not fail the batch either.
+   *
+   * @throws org.openqa.selenium.WebDriverException if Opera failed to perform any of the actions
+   *                                                 which report errors
+   */
+  void finishBatch();
+
   /**
    * Check if the page contains color(s) as specified in {@link OperaColors}. <p/> TODO: Needs
    * abstraction layer
@@ -96,4 +114,16 @@ public interface IOperaExec {
   ScreenShotReply screenWatcher(Canvas canvas, long timeout, boolean includeImage,
                                 String... hashes);
 
+  /**
+   * Take screenshots of several areas, such as the tiles of a {@link
+   * com.opera.core.systems.model.ScreenshotDiff}, in a single round-trip.  The image data of an
+   * area is only included if its hash differs from the given one.
+   *
+   * @param canvases the areas to take screenshots of
+   * @param timeout  the number of milliseconds to wait before taking each screenshot
+   * @param hashes   the known hash of each area, or null where it is not known
+   * @return the screenshot of each area
+   */
+  List<ScreenShotReply> screenWatcher(List<Canvas> canvases, long timeout, List<String> hashes);
+
 }
\ No newline at end of file
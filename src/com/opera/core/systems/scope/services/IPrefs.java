@@ -18,6 +18,7 @@ package com.opera.core.systems.scope.services;
 
 import com.opera.core.systems.scope.protos.PrefsProtos.GetPrefArg.Mode;
 import com.opera.core.systems.scope.protos.PrefsProtos.Pref;
+import com.opera.core.systems.scope.protos.PrefsProtos.SetPrefArg;
 
 import java.util.List;
 
@@ -54,4 +55,12 @@ public interface IPrefs {
    */
   void setPrefs(String section, String key, String value);
 
+  /**
+   * Sets several preferences in <var>operaprefs.ini</var>.  All preferences are sent before waiting
+   * for any of them to be acknowledged.
+   *
+   * @param prefs the section, key and new value of each preference
+   */
+  void setPrefs(List<SetPrefArg> prefs);
+
 }
\ No newline at end of file
@@ -16,10 +16,13 @@ limitations under the License.
 
 package com.opera.core.systems.scope.services.ums;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import com.opera.core.systems.OperaDriver.PrivateData;
 import com.opera.core.systems.ScopeServices;
 import com.opera.core.systems.scope.AbstractService;
 import com.opera.core.systems.scope.CoreUtilsCommand;
+import com.opera.core.systems.scope.internal.OperaIntervals;
 import com.opera.core.systems.scope.protos.CoreProtos;
 import com.opera.core.systems.scope.protos.CoreProtos.BrowserInformation;
 import com.opera.core.systems.scope.protos.CoreProtos.ClearFlags;
@@ -39,6 +42,7 @@ import java.util.List;
 public class CoreUtils extends AbstractService implements ICoreUtils {
 
   private boolean supportsMeta = false;
+  private ListenableFuture<Response> browserInformationResponse;
   private BrowserInformation browserInformation;
 
   public CoreUtils(ScopeServices services, String version) {
@@ -54,9 +58,14 @@ public class CoreUtils extends AbstractService implements ICoreUtils {
     services.setCoreUtils(this);
   }
 
+  /**
+   * Requests the browser meta information without waiting for it, so that the round-trip overlaps
+   * with the initialization of the other services.  It is waited for when it is first needed.
+   */
   public void init() {
     if (hasMetaInformation()) {
-      browserInformation = getBrowserInformation();
+      browserInformationResponse =
+          executeCommandAsync(CoreUtilsCommand.GET_BROWSER_INFORMATION, null);
     }
   }
 
@@ -66,32 +75,32 @@ public class CoreUtils extends AbstractService implements ICoreUtils {
 
   public String getCoreVersion() {
     assertHasMetaInformation();
-    return browserInformation.getCoreVersion();
+    return getBrowserInformation().getCoreVersion();
   }
 
   public String getOperatingSystem() {
     assertHasMetaInformation();
-    return browserInformation.getOperatingSystem();
+    return getBrowserInformation().getOperatingSystem();
   }
 
   public String getProduct() {
     assertHasMetaInformation();
-    return browserInformation.getProduct();
+    return getBrowserInformation().getProduct();
   }
 
   public String getBinaryPath() {
     assertHasMetaInformation();
-    return browserInformation.getBinaryPath();
+    return getBrowserInformation().getBinaryPath();
   }
 
   public String getUserAgent() {
     assertHasMetaInformation();
-    return browserInformation.getUserAgent();
+    return getBrowserInformation().getUserAgent();
   }
 
   public Integer getProcessID() {
     assertHasMetaInformation();
-    return browserInformation.getProcessID();
+    return getBrowserInformation().getProcessID();
   }
 
   public void clearPrivateData(List<ClearFlags> flags) {
@@ -106,11 +115,20 @@ public class CoreUtils extends AbstractService implements ICoreUtils {
 
   // Private methods follow
 
-  private BrowserInformation getBrowserInformation() {
-    Response response = executeCommand(CoreUtilsCommand.GET_BROWSER_INFORMATION, null);
-    BrowserInformation.Builder builder = BrowserInformation.newBuilder();
-    buildPayload(response, builder);
-    return builder.build();
+  private synchronized BrowserInformation getBrowserInformation() {
+    if (browserInformation == null) {
+      Response response = services.waitForResponse(browserInformationResponse,
+                                                   OperaIntervals.RESPONSE_TIMEOUT.getMs());
+      if (response == null) {
+        throw new WebDriverException("Unable to get browser information");
+      }
+
+      BrowserInformation.Builder builder = BrowserInformation.newBuilder();
+      buildPayload(response, builder);
+      browserInformation = builder.build();
+    }
+
+    return browserInformation;
   }
 
   private List<CoreProtos.ClearFlags> privateDataFlagsToScope(PrivateData... flags) {
@@ -16,6 +16,9 @@ limitations under the License.
 
 package com.opera.core.systems.scope.services.ums;
 
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+
 import com.opera.core.systems.OperaWebElement;
 import com.opera.core.systems.ScopeServices;
 import com.opera.core.systems.model.ScriptResult;
@@ -28,6 +31,7 @@ import com.opera.core.systems.scope.protos.EsdbgProtos.EvalData;
 import com.opera.core.systems.scope.protos.EsdbgProtos.EvalData.Variable;
 import com.opera.core.systems.scope.protos.EsdbgProtos.EvalResult;
 import com.opera.core.systems.scope.protos.EsdbgProtos.ExamineList;
+import com.opera.core.systems.scope.protos.EsdbgProtos.ObjectInfo;
 import com.opera.core.systems.scope.protos.EsdbgProtos.ObjectInfo.Property;
 import com.opera.core.systems.scope.protos.EsdbgProtos.ObjectList;
 import com.opera.core.systems.scope.protos.EsdbgProtos.ObjectValue;
@@ -129,6 +133,7 @@ public class EcmaScriptDebugger extends AbstractEcmascriptService implements
 
   public void removeRuntime(int runtimeId) {
     runtimesList.remove(runtimeId);
+    invalidateAtoms(runtimeId);
   }
 
   private List<RuntimeInfo> getRuntimesList() {
@@ -323,6 +328,37 @@ public class EcmaScriptDebugger extends AbstractEcmascriptService implements
     return ((ObjectValue) object).getObjectID();
   }
 
+  protected Integer getObjectId(Object result) {
+    return (result instanceof ObjectValue) ? ((ObjectValue) result).getObjectID() : null;
+  }
+
+  public List<Object> callFunctionsOnObject(int objectId, String... scripts) {
+    Variable variable = buildVariable("locator", objectId);
+    List<ListenableFuture<Response>> pending =
+        new ArrayList<ListenableFuture<Response>>(scripts.length);
+
+    for (String script : scripts) {
+      EvalData.Builder builder = buildEval(script, getRuntimeId());
+      builder.addVariableList(variable);
+      pending.add(executeCommandAsync(ESDebuggerCommand.EVAL, builder));
+    }
+
+    List<Object> results = new ArrayList<Object>(scripts.length);
+    for (int i = 0; i < scripts.length; i++) {
+      Response response = services.waitForResponse(pending.get(i),
+                                                   OperaIntervals.SCRIPT_TIMEOUT.getMs());
+
+      if (response == null) {
+        // Let the blocking path recover the runtime and retry
+        results.add(callFunctionOnObject(scripts[i], objectId, true));
+      } else {
+        results.add(parseEvalReply(parseEvalData(response)));
+      }
+    }
+
+    return results;
+  }
+
   /**
    * Parses a reply and returns the following types String presentation of number, boolean or
    * string.
@@ -503,6 +539,7 @@ public class EcmaScriptDebugger extends AbstractEcmascriptService implements
     for (RuntimeInfo runtime : runtimesList.values()) {
       if (runtime.getWindowID() == windowId) {
         runtimesList.remove(runtime.getRuntimeID());
+        invalidateAtoms(runtime.getRuntimeID());
       }
     }
   }
@@ -547,6 +584,10 @@ public class EcmaScriptDebugger extends AbstractEcmascriptService implements
     // not supported, silently ignore
   }
 
+  public void trackObject(Object owner, int objectId) {
+    // not supported, silently ignore
+  }
+
   public void resetFramePath() {
     currentFramePath = "_top";
     setRuntime(findRuntime());
@@ -568,19 +609,73 @@ public class EcmaScriptDebugger extends AbstractEcmascriptService implements
   }
 
   public Object examineScriptResult(Integer id) {
-    return examineScriptResult(id, new HashSet<Integer>());
+    return buildScriptResult(id, examineObjectGraph(id), new HashSet<Integer>());
   }
 
-  private Object examineScriptResult(Integer id, Set<Integer> visitedIDs) {
+  /**
+   * Examines an object and every object reachable from it, examining all objects found at the
+   * same depth with a single EXAMINE_OBJECTS.  Elements are not descended into, and are not
+   * examined at all when the referring property already tells us their class.
+   *
+   * @param id the object to start at
+   * @return the examined objects, by object ID
+   */
+  private Map<Integer, ObjectInfo> examineObjectGraph(Integer id) {
+    Map<Integer, ObjectInfo> examined = new HashMap<Integer, ObjectInfo>();
+    Set<Integer> queued = new HashSet<Integer>();
+    List<Integer> level = Lists.newArrayList(id);
+    queued.add(id);
+
+    while (!level.isEmpty()) {
+      List<Integer> next = new ArrayList<Integer>();
+
+      for (ObjectInfo info : getObjectList(level).getObjectListList()) {
+        examined.put(info.getValue().getObjectID(), info);
+
+        if (isElement(info.getValue())) {
+          continue;
+        }
+
+        for (Property property : info.getPropertyListList()) {
+          if (!property.getType().equals("object")) {
+            continue;
+          }
+
+          ObjectValue child = property.getObjectValue();
+          if (isElement(child)) {
+            examined.put(child.getObjectID(), ObjectInfo.newBuilder().setValue(child).build());
+          } else if (queued.add(child.getObjectID())) {
+            next.add(child.getObjectID());
+          }
+        }
+      }
+
+      level = next;
+    }
+
+    return examined;
+  }
+
+  private static boolean isElement(ObjectValue value) {
+    return value.hasName() && value.getName().endsWith("Element");
+  }
+
+  private Object buildScriptResult(Integer id, Map<Integer, ObjectInfo> examined,
+                                   Set<Integer> visitedIDs) {
     if (visitedIDs.contains(id)) {
       // cyclic reference - returning null for the inner most reference
       return null;
     }
     visitedIDs.add(id);
-    ObjectList list = getObjectList(id);
-    String className = list.getObjectList(0).getValue().getName();
 
-    List<Property> properties = list.getObjectList(0).getPropertyListList();
+    ObjectInfo info = examined.get(id);
+    if (info == null) {
+      // The object was garbage collected before we got to examine it
+      return null;
+    }
+
+    String className = info.getValue().getName();
+    List<Property> properties = info.getPropertyListList();
 
     if (className.endsWith("Element")) {
       return new OperaWebElement(driver, id);
@@ -592,7 +687,8 @@ public class EcmaScriptDebugger extends AbstractEcmascriptService implements
             && property.getName().equals("length")) {
           // ignore ?!?
         } else if (property.getType().equals("object")) {
-          result.add(examineScriptResult(property.getObjectValue().getObjectID(), visitedIDs));
+          result.add(buildScriptResult(property.getObjectValue().getObjectID(), examined,
+                                       visitedIDs));
         } else {
           result.add(parseValue(property.getType(), property.getValue()));
         }
@@ -608,7 +704,8 @@ public class EcmaScriptDebugger extends AbstractEcmascriptService implements
           // ignore ?!?
         } else if (property.getType().equals("object")) {
           result.put(property.getName(),
-                     examineScriptResult(property.getObjectValue().getObjectID(), visitedIDs));
+                     buildScriptResult(property.getObjectValue().getObjectID(), examined,
+                                       visitedIDs));
         } else {
           result.put(property.getName(), parseValue(property.getType(),
                                                     property.getValue()));
@@ -619,9 +716,13 @@ public class EcmaScriptDebugger extends AbstractEcmascriptService implements
   }
 
   private ObjectList getObjectList(Integer id) {
+    return getObjectList(Arrays.asList(id));
+  }
+
+  private ObjectList getObjectList(List<Integer> ids) {
     ExamineList.Builder examine = ExamineList.newBuilder();
     examine.setRuntimeID(getRuntimeId());
-    examine.addObjectList(id);
+    examine.addAllObjectList(ids);
     Response response = executeCommand(ESDebuggerCommand.EXAMINE_OBJECTS,
                                        examine);
 
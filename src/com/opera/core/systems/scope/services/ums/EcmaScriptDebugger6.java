@@ -16,6 +16,8 @@ limitations under the License.
 
 package com.opera.core.systems.scope.services.ums;
 
+import com.google.common.collect.Lists;
+
 import com.opera.core.systems.OperaWebElement;
 import com.opera.core.systems.ScopeServices;
 import com.opera.core.systems.model.ScriptResult;
@@ -23,7 +25,9 @@ import com.opera.core.systems.scope.ESDebuggerCommand;
 import com.opera.core.systems.scope.protos.Esdbg6Protos.EvalResult;
 import com.opera.core.systems.scope.protos.Esdbg6Protos.ExamineList;
 import com.opera.core.systems.scope.protos.Esdbg6Protos.ObjectChainList;
+import com.opera.core.systems.scope.protos.Esdbg6Protos.ObjectInfo;
 import com.opera.core.systems.scope.protos.Esdbg6Protos.ObjectInfo.Property;
+import com.opera.core.systems.scope.protos.Esdbg6Protos.ObjectList;
 import com.opera.core.systems.scope.protos.Esdbg6Protos.ObjectValue;
 import com.opera.core.systems.scope.protos.EsdbgProtos.EvalData;
 import com.opera.core.systems.scope.protos.EsdbgProtos.EvalData.Variable;
@@ -34,6 +38,7 @@ import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.WebElement;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -239,21 +244,73 @@ public class EcmaScriptDebugger6 extends EcmaScriptDebugger {
 
   @Override
   public Object examineScriptResult(Integer id) {
-    return examineScriptResult(id, new HashSet<Integer>());
+    return buildScriptResult(id, examineObjectGraph(id), new HashSet<Integer>());
   }
 
-  private Object examineScriptResult(Integer id, Set<Integer> visitedIDs) {
+  /**
+   * Examines an object and every object reachable from it, examining all objects found at the
+   * same depth with a single EXAMINE_OBJECTS.
+   *
+   * @param id the object to start at
+   * @return the examined objects, by object ID
+   */
+  private Map<Integer, ObjectInfo> examineObjectGraph(Integer id) {
+    Map<Integer, ObjectInfo> examined = new HashMap<Integer, ObjectInfo>();
+    Set<Integer> queued = new HashSet<Integer>();
+    List<Integer> level = Lists.newArrayList(id);
+    queued.add(id);
+
+    while (!level.isEmpty()) {
+      List<Integer> next = new ArrayList<Integer>();
+
+      for (ObjectList chain : getChainList(level).getObjectChainListList()) {
+        ObjectInfo info = chain.getObjectList(0);
+        examined.put(info.getValue().getObjectID(), info);
+
+        if (isElement(info.getValue())) {
+          continue;
+        }
+
+        for (Property property : info.getPropertyListList()) {
+          if (!property.getType().equals("object")) {
+            continue;
+          }
+
+          ObjectValue child = property.getObjectValue();
+          if (isElement(child)) {
+            examined.put(child.getObjectID(), ObjectInfo.newBuilder().setValue(child).build());
+          } else if (queued.add(child.getObjectID())) {
+            next.add(child.getObjectID());
+          }
+        }
+      }
+
+      level = next;
+    }
+
+    return examined;
+  }
+
+  private static boolean isElement(ObjectValue value) {
+    return value.hasClassName() && value.getClassName().endsWith("Element");
+  }
+
+  private Object buildScriptResult(Integer id, Map<Integer, ObjectInfo> examined,
+                                   Set<Integer> visitedIDs) {
     if (visitedIDs.contains(id)) {
       // cyclic reference - returning null for the inner most reference
       return null;
     }
     visitedIDs.add(id);
-    ObjectChainList list = getChainList(id);
-    List<Property> properties =
-        list.getObjectChainList(0).getObjectListList().get(0).getPropertyListList();
 
-    String className =
-        list.getObjectChainListList().get(0).getObjectList(0).getValue().getClassName();
+    ObjectInfo info = examined.get(id);
+    if (info == null) {
+      // The object was garbage collected before we got to examine it
+      return null;
+    }
+
+    List<Property> properties = info.getPropertyListList();
+    String className = info.getValue().getClassName();
 
     if (className.endsWith("Element")) {
       return new OperaWebElement(driver, id);
@@ -264,7 +321,8 @@ public class EcmaScriptDebugger6 extends EcmaScriptDebugger {
         if (property.getType().equals("number") && property.getName().equals("length")) {
           // ignore these, they just tell us about the length of the result
         } else if (property.getType().equals("object")) {
-          result.add(examineScriptResult(property.getObjectValue().getObjectID(), visitedIDs));
+          result.add(buildScriptResult(property.getObjectValue().getObjectID(), examined,
+                                       visitedIDs));
         } else {
           result.add(parseValue(property.getType(), property.getValue()));
         }
@@ -278,7 +336,9 @@ public class EcmaScriptDebugger6 extends EcmaScriptDebugger {
         if (property.getType().equals("number") && property.getName().equals("length")) {
           // ignore ?!?
         } else if (property.getType().equals("object")) {
-          result.put(property.getName(), examineScriptResult(property.getObjectValue().getObjectID(), visitedIDs));
+          result.put(property.getName(),
+                     buildScriptResult(property.getObjectValue().getObjectID(), examined,
+                                       visitedIDs));
         } else {
           result.put(property.getName(), parseValue(property.getType(), property.getValue()));
         }
@@ -288,10 +348,14 @@ public class EcmaScriptDebugger6 extends EcmaScriptDebugger {
   }
 
   private ObjectChainList getChainList(Integer id) {
+    return getChainList(Arrays.asList(id));
+  }
+
+  private ObjectChainList getChainList(List<Integer> ids) {
     ExamineList.Builder examine = ExamineList.newBuilder();
     examine.setExaminePrototypes(false);
     examine.setRuntimeID(getRuntimeId());
-    examine.addObjectList(id);
+    examine.addAllObjectList(ids);
     Response response = executeCommand(ESDebuggerCommand.EXAMINE_OBJECTS, examine);
 
     ObjectChainList.Builder builder = ObjectChainList.newBuilder();
@@ -17,13 +17,14 @@ limitations under the License.
 package com.opera.core.systems.scope.services.ums;
 
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import com.opera.core.systems.OperaWebElement;
 import com.opera.core.systems.ScopeServices;
-import com.opera.core.systems.model.RuntimeNode;
 import com.opera.core.systems.model.ScriptResult;
 import com.opera.core.systems.scope.AbstractEcmascriptService;
 import com.opera.core.systems.scope.ESCommand;
+import com.opera.core.systems.scope.ObjectHandleTable;
 import com.opera.core.systems.scope.protos.EcmascriptProtos;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.EvalArg;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.EvalArg.Variable;
@@ -33,6 +34,7 @@ import com.opera.core.systems.scope.protos.EcmascriptProtos.ExamineObjectsArg;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ListRuntimesArg;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.Object.Property;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ObjectList;
+import com.opera.core.systems.scope.protos.EcmascriptProtos.PrototypeChain;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ReadyStateChange;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ReleaseObjectsArg;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.Runtime;
@@ -59,10 +61,13 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicStampedReference;
 
+import static com.opera.core.systems.scope.internal.OperaIntervals.OBJECT_RELEASE_INTERVAL;
 import static com.opera.core.systems.scope.internal.OperaIntervals.SCRIPT_RETRY_INTERVAL;
 import static com.opera.core.systems.scope.internal.OperaIntervals.SCRIPT_TIMEOUT;
 
@@ -80,8 +85,22 @@ public class EcmascriptService extends AbstractEcmascriptService implements
   private AtomicStampedReference<Runtime> runtime = new AtomicStampedReference<Runtime>(null, 0);
   private ConcurrentMap<Integer, Runtime> runtimesList = new ConcurrentHashMap<Integer, Runtime>();
 
-  private Queue<Integer> runtimesQueue = Lists.newLinkedList();
-  private Queue<Integer> garbageQueue = Lists.newLinkedList();
+  /**
+   * The runtimes in {@link #runtimesList} by window ID and HTML frame path, see {@link
+   * #frameKey(int, String)}.  Where several runtimes have the same frame path, the newest one is
+   * indexed.  Kept up to date as runtimes are added and removed so that finding the runtime of a
+   * frame does not require listing all runtimes.
+   */
+  private final Map<String, Runtime> runtimesByFrame = new HashMap<String, Runtime>();
+
+  private Queue<Integer> runtimesQueue = new ConcurrentLinkedQueue<Integer>();
+  private final ObjectHandleTable handles = new ObjectHandleTable();
+  private long lastRelease;
+
+  /**
+   * The maximum number of objects to release with a single {@link ESCommand#RELEASE_OBJECTS}.
+   */
+  private static final int MAX_RELEASE_BATCH = 256;
 
   public EcmascriptService(ScopeServices services, String version) {
     super(services, version);
@@ -111,11 +130,73 @@ public class EcmascriptService extends AbstractEcmascriptService implements
     runtime.setObjectID(info.getObjectID());
     runtime.setUri(info.getUri());
 
-    runtimesList.put(info.getRuntimeID(), runtime.build());
+    indexRuntime(runtime.build());
   }
 
   public void removeRuntime(int runtimeId) {
-    runtimesList.remove(runtimeId);
+    unindexRuntime(runtimeId);
+  }
+
+  private static String frameKey(int windowId, String framePath) {
+    return windowId + ":" + framePath;
+  }
+
+  private void indexRuntime(Runtime runtime) {
+    synchronized (runtimesByFrame) {
+      runtimesList.put(runtime.getRuntimeID(), runtime);
+
+      String key = frameKey(runtime.getWindowID(), runtime.getHtmlFramePath());
+      Runtime indexed = runtimesByFrame.get(key);
+      if (indexed == null || indexed.getRuntimeID() <= runtime.getRuntimeID()) {
+        runtimesByFrame.put(key, runtime);
+      }
+    }
+  }
+
+  private void unindexRuntime(int runtimeId) {
+    synchronized (runtimesByFrame) {
+      Runtime runtime = runtimesList.remove(runtimeId);
+      if (runtime != null) {
+        String key = frameKey(runtime.getWindowID(), runtime.getHtmlFramePath());
+        if (runtimesByFrame.get(key) == runtime) {
+          runtimesByFrame.remove(key);
+        }
+      }
+    }
+
+    invalidateAtoms(runtimeId);
+  }
+
+  private void clearRuntimes() {
+    synchronized (runtimesByFrame) {
+      runtimesList.clear();
+      runtimesByFrame.clear();
+    }
+  }
+
+  /**
+   * Gets the runtime of the given frame, refreshing the list of runtimes if it is not known.
+   *
+   * @param windowId  the window the frame is in
+   * @param framePath the HTML frame path of the frame
+   * @return the runtime, or null if there is no such frame
+   */
+  private Runtime getFrameRuntime(int windowId, String framePath) {
+    processNewRuntimes();
+
+    Runtime runtime;
+    synchronized (runtimesByFrame) {
+      runtime = runtimesByFrame.get(frameKey(windowId, framePath));
+    }
+
+    if (runtime == null) {
+      createAllRuntimes();
+      synchronized (runtimesByFrame) {
+        runtime = runtimesByFrame.get(frameKey(windowId, framePath));
+      }
+    }
+
+    return runtime;
   }
 
   private List<Runtime> getRuntimesList() {
@@ -154,13 +235,15 @@ public class EcmascriptService extends AbstractEcmascriptService implements
     selection.setCreate(true);
     Response response = executeCommand(ESCommand.LIST_RUNTIMES, selection);
 
-    runtimesList.clear();
     RuntimeList.Builder builder = RuntimeList.newBuilder();
     buildPayload(response, builder);
     List<Runtime> allRuntimes = builder.build().getRuntimeListList();
 
-    for (Runtime info : allRuntimes) {
-      runtimesList.put(info.getRuntimeID(), info);
+    synchronized (runtimesByFrame) {
+      clearRuntimes();
+      for (Runtime info : allRuntimes) {
+        indexRuntime(info);
+      }
     }
   }
 
@@ -264,7 +347,7 @@ public class EcmascriptService extends AbstractEcmascriptService implements
 
     // If ecmascript is turned off there is no point trying to eval
     // in these cases null will be returned
-    if(driver.preferences().get("Extensions", "Scripting").getValue().equals(false)) {
+    if (isScriptingDisabled()) {
       return EvalResult.getDefaultInstance();
     }
 
@@ -275,7 +358,7 @@ public class EcmascriptService extends AbstractEcmascriptService implements
 
     if (response == null && retries < 5) {
       retries++;
-      sleepDuration += SCRIPT_RETRY_INTERVAL.getValue();
+      sleepDuration += SCRIPT_RETRY_INTERVAL.getMs();
       sleep(sleepDuration);
       recover();
       return eval(using, variables);
@@ -286,14 +369,24 @@ public class EcmascriptService extends AbstractEcmascriptService implements
 
     resetCounters();
 
-    return parseEvalData(response);
+    EvalResult result = parseEvalData(response);
+
+    if (result.getStatus() == Status.EXCEPTION && installMissingAtoms(using, runtimeId)) {
+      return eval(using, runtimeId, variables);
+    }
+
+    return result;
+  }
+
+  private boolean isScriptingDisabled() {
+    return driver.preferences().get("Extensions", "Scripting").getValue().equals(false);
   }
 
   public Object executeScript(String using, boolean responseExpected) {
     return executeScript(using, responseExpected, getRuntimeId());
   }
 
-  private Object executeScript(String using, boolean responseExpected, int runtimeId) {
+  protected Object executeScript(String using, boolean responseExpected, int runtimeId) {
     EvalResult reply = eval(using, runtimeId);
     return responseExpected ? parseEvalReply(reply) : null;
   }
@@ -327,6 +420,52 @@ public class EcmascriptService extends AbstractEcmascriptService implements
     return ((EcmascriptProtos.Object) object).getObjectID();
   }
 
+  protected Integer getObjectId(Object result) {
+    return (result instanceof EcmascriptProtos.Object)
+           ? ((EcmascriptProtos.Object) result).getObjectID() : null;
+  }
+
+  public List<Object> callFunctionsOnObject(int objectId, String... scripts) {
+    List<Object> results = new ArrayList<Object>(scripts.length);
+
+    if (isScriptingDisabled()) {
+      for (int i = 0; i < scripts.length; i++) {
+        results.add(parseEvalReply(EvalResult.getDefaultInstance()));
+      }
+      return results;
+    }
+
+    Variable variable = buildVariable("locator", objectId);
+    List<ListenableFuture<Response>> pending =
+        new ArrayList<ListenableFuture<Response>>(scripts.length);
+
+    for (String script : scripts) {
+      EvalArg.Builder builder = buildEval(script, getRuntimeId());
+      builder.addVariableList(variable);
+      pending.add(executeCommandAsync(ESCommand.EVAL, builder));
+    }
+
+    for (int i = 0; i < scripts.length; i++) {
+      Response response = services.waitForResponse(pending.get(i), SCRIPT_TIMEOUT.getMs());
+
+      if (response == null) {
+        // Let the blocking path recover the runtime and retry
+        results.add(callFunctionOnObject(scripts[i], objectId, true));
+        continue;
+      }
+
+      EvalResult result = parseEvalData(response);
+      if (result.getStatus() == Status.EXCEPTION
+          && installMissingAtoms(scripts[i], getRuntimeId())) {
+        results.add(callFunctionOnObject(scripts[i], objectId, true));
+      } else {
+        results.add(parseEvalReply(result));
+      }
+    }
+
+    return results;
+  }
+
   /**
    * Parses a reply and returns the result of the script execution.  The result from EcmaScript is
    * converted based on the object types specified by Scope:
@@ -408,66 +547,127 @@ public class EcmascriptService extends AbstractEcmascriptService implements
   }
 
   protected Runtime findRuntime(int windowId) {
+    return getFrameRuntime(windowId, currentFramePath);
+  }
+
+  @Override
+  protected void recover() {
+    // The runtime we failed to use may be gone without us having been told
     createAllRuntimes();
-    return (Runtime) xpathPointer(runtimesList.values(),
-                                  String.format("/.[htmlFramePath='%s' and windowID='%d']",
-                                                currentFramePath, windowId)).getValue();
+    super.recover();
   }
 
   /**
-   * Updates the runtimes list to most recent version
+   * Finds a child frame of the given frame, by index (counting from 0), by name, or by the ID of
+   * the frame element, in that order of preference.
    *
-   * TODO this has to be kept up to date with events and as failover we should update It builds a
-   * tree to find the frame we are looking for TODO tree also must be kept up to date
+   * @param windowId   the window the frames are in
+   * @param parentPath the HTML frame path of the parent frame
+   * @param name       the index, name or ID of the child frame
+   * @return the HTML frame path of the child frame, or null if there is no such frame
    */
-  private void buildRuntimeTree() {
-    updateRuntime();
-    Runtime rootInfo = findRuntime();
-    root = new RuntimeNode();
-    root.setFrameName("_top");
-    root.setRuntimeID(rootInfo.getRuntimeID());
+  private String findChildFrame(int windowId, String parentPath, String name) {
+    // Frame paths look like "_top/name[index]/name[index]", with indices counting from 1
+    String prefix = parentPath + "/";
+    Map<Integer, String> children = new TreeMap<Integer, String>();
+
+    synchronized (runtimesByFrame) {
+      for (Runtime runtime : runtimesByFrame.values()) {
+        String path = runtime.getHtmlFramePath();
+        if (runtime.getWindowID() == windowId && path.startsWith(prefix)) {
+          int end = path.indexOf('/', prefix.length());
+          String child = path.substring(prefix.length(), (end == -1) ? path.length() : end);
+          children.put(framePathToIndex(child), child);
+        }
+      }
+    }
 
-    List<Runtime> runtimesInfos = new ArrayList<Runtime>(runtimesList.values());
-    runtimesInfos.remove(rootInfo);
+    for (Entry<Integer, String> child : children.entrySet()) {
+      String childPath = prefix + child.getValue();
 
-    for (Runtime runtimeInfo : runtimesInfos) {
-      addNode(runtimeInfo, root);
+      // check if the name is a number
+      if (isNumber(name) && child.getKey().equals(Integer.valueOf(name) + 1)) {
+        return childPath;
+      }
+      // check if it is really the name
+      else if (child.getValue().substring(0, child.getValue().indexOf('[')).equals(name)) {
+        return childPath;
+      }
+      // last resort is id
+      else {
+        Runtime runtime = getFrameRuntime(windowId, childPath);
+        if (runtime == null) {
+          continue;
+        }
+
+        try {
+          if (name.equals(executeScript("frameElement ? frameElement.id : ''", true,
+                                        runtime.getRuntimeID()))) {
+            return childPath;
+          }
+        } catch (WebDriverException e) {
+          // ignore exception
+        }
+      }
     }
+
+    return null;
   }
 
-  public void changeRuntime(int index) {
-    buildRuntimeTree();
+  /**
+   * Finds a frame by its path of indices, names or frame element IDs separated by dots, starting
+   * from the top-level frame.  If it is not found the runtimes are listed again, in case we have
+   * not yet been told about the frame, and it is looked for once more.
+   *
+   * @param windowId the window the frame is in
+   * @param names    the indices, names or IDs of the frames on the path
+   * @return the runtime of the frame, or null if there is no such frame
+   */
+  private Runtime findFrame(int windowId, String... names) {
+    for (int attempt = 0; attempt < 2; attempt++) {
+      if (attempt == 0) {
+        processNewRuntimes();
+      } else {
+        createAllRuntimes();
+      }
 
-    RuntimeNode node = root.getNodes().get(index + 1);
+      String path = "_top";
+      for (String name : names) {
+        path = findChildFrame(windowId, path, name);
+        if (path == null) {
+          break;
+        }
+      }
 
-    if (node == null) {
+      if (path != null) {
+        Runtime runtime = getFrameRuntime(windowId, path);
+        if (runtime != null) {
+          return runtime;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  public void changeRuntime(int index) {
+    Runtime info = findFrame(windowManager.getActiveWindowId(), String.valueOf(index));
+
+    if (info == null) {
       throw new NoSuchFrameException("Invalid frame index " + index);
     }
 
-    Runtime info = runtimesList.get(node.getRuntimeID());
     currentFramePath = info.getHtmlFramePath();
     setRuntime(info);
   }
 
   public void changeRuntime(String frameName) {
-    buildRuntimeTree();
-
-    String[] values = frameName.split("\\.");
-    RuntimeNode curr = root;
-
-    for (String value : values) {
-      curr = findNodeByName(value, curr);
-      if (curr == null) {
-        break;
-      }
-    }
+    Runtime info = findFrame(windowManager.getActiveWindowId(), frameName.split("\\."));
 
-    if (curr == null) {
+    if (info == null) {
       throw new NoSuchFrameException("Invalid frame name " + frameName);
     }
 
-    Runtime info = runtimesList.get(curr.getRuntimeID());
-
     // We should only find frames underneath the current one.
     if (!info.getHtmlFramePath().startsWith(currentFramePath)) {
       throw new NoSuchFrameException("No such frame " + frameName + " in " + currentFramePath);
@@ -477,54 +677,6 @@ public class EcmascriptService extends AbstractEcmascriptService implements
     setRuntime(info);
   }
 
-  private RuntimeNode findNodeByName(String name, RuntimeNode rootNode) {
-    for (Entry<Integer, RuntimeNode> entry : rootNode.getNodes().entrySet()) {
-      // check if the name is a number
-      if (isNumber(name) && entry.getKey().equals(Integer.valueOf(name) + 1)) {
-        return entry.getValue();
-      }
-      // check if it is really the name
-      else if (entry.getValue().getFrameName().equals(name)) {
-        return entry.getValue();
-      }
-      // last resort is id
-      else {
-        try {
-          if (executeScript("frameElement ? frameElement.id : ''", true,
-                            entry.getValue().getRuntimeID()).equals(name)) {
-            return entry.getValue();
-          }
-        } catch (WebDriverException e) {
-          // ignore exception
-        }
-      }
-    }
-    return null;
-  }
-
-  private void addNode(Runtime info, RuntimeNode root) {
-    String[] values = info.getHtmlFramePath().split("/");
-    RuntimeNode curr = root;
-
-    // first frame is always _top, so we skip it
-    for (int i = 1; i < values.length; ++i) {
-      int index = framePathToIndex(values[i]);
-      if (curr.getNodes().get(index) == null) {
-        // add to this node
-        RuntimeNode node = new RuntimeNode();
-        int end = values[i].indexOf('[');
-        node.setFrameName(values[i].substring(0, end));
-        curr.getNodes().put(index, node);
-        curr = node;
-      } else {
-        curr = curr.getNodes().get(index);
-      }
-      // else we already know about this node, skip it
-    }
-    // last node gets the runtime id
-    curr.setRuntimeID(info.getRuntimeID());
-  }
-
   private int framePathToIndex(String framePath) {
     int begin = framePath.indexOf('[');
     int end = framePath.indexOf(']');
@@ -536,7 +688,7 @@ public class EcmascriptService extends AbstractEcmascriptService implements
     // window id
     for (Runtime runtime : runtimesList.values()) {
       if (runtime.getWindowID() == windowId) {
-        runtimesList.remove(runtime.getRuntimeID());
+        unindexRuntime(runtime.getRuntimeID());
       }
     }
   }
@@ -568,13 +720,20 @@ public class EcmascriptService extends AbstractEcmascriptService implements
   public void releaseObjects() {
     ReleaseObjectsArg.Builder builder = ReleaseObjectsArg.newBuilder();
     executeCommand(ESCommand.RELEASE_OBJECTS, builder);
+    handles.clear();
   }
 
   public void resetRuntimesList() {
-    runtimesList.clear();
+    clearRuntimes();
   }
 
   public void readyStateChanged(ReadyStateChange change) {
+    // A new DOM environment means a new global object, and the atoms installed on the old one are
+    // gone
+    if (change.getState() == ReadyStateChange.State.DOM_ENVIRONMENT_CREATED) {
+      invalidateAtoms(change.getRuntimeID());
+    }
+
     // We should probably wait for AFTER_LOAD but it is reported to be broken, so we will just wait
     // until DOM_CONTENT_LOADED so we can interact with the page as soon as possible.
     if (!runtimesList.containsKey(change.getRuntimeID())) {
@@ -584,7 +743,11 @@ public class EcmascriptService extends AbstractEcmascriptService implements
   }
 
   public void releaseObject(int objectId) {
-    garbageQueue.add(objectId);
+    handles.release(objectId);
+  }
+
+  public void trackObject(Object owner, int objectId) {
+    handles.track(owner, objectId);
   }
 
   public void resetFramePath() {
@@ -606,19 +769,77 @@ public class EcmascriptService extends AbstractEcmascriptService implements
   }
 
   public Object examineScriptResult(Integer id) {
-    return examineScriptResult(id, new HashSet<Integer>());
+    return buildScriptResult(id, examineObjectGraph(id), new HashSet<Integer>());
   }
 
-  private Object examineScriptResult(Integer id, Set<Integer> visitedIDs) {
+  /**
+   * Examines an object and every object reachable from it.  Rather than examining one object at a
+   * time, all objects found at the same depth are examined with a single {@link
+   * ESCommand#EXAMINE_OBJECTS}, so a result only costs one round-trip per level of nesting.
+   * Elements are not descended into, and are not examined at all when the referring property
+   * already tells us their class.
+   *
+   * @param id the object to start at
+   * @return the examined objects, by object ID
+   */
+  private Map<Integer, EcmascriptProtos.Object> examineObjectGraph(Integer id) {
+    Map<Integer, EcmascriptProtos.Object> examined =
+        new HashMap<Integer, EcmascriptProtos.Object>();
+    Set<Integer> queued = new HashSet<Integer>();
+    List<Integer> level = Lists.newArrayList(id);
+    queued.add(id);
+
+    while (!level.isEmpty()) {
+      List<Integer> next = new ArrayList<Integer>();
+
+      for (PrototypeChain chain : getObjectList(level).getPrototypeListList()) {
+        EcmascriptProtos.Object object = chain.getObjectList(0);
+        examined.put(object.getObjectID(), object);
+
+        if (isElement(object)) {
+          continue;
+        }
+
+        for (Property property : object.getPropertyListList()) {
+          Value value = property.getValue();
+          if (value.getType() != Type.OBJECT) {
+            continue;
+          }
+
+          EcmascriptProtos.Object child = value.getObject();
+          if (isElement(child)) {
+            examined.put(child.getObjectID(), child);
+          } else if (queued.add(child.getObjectID())) {
+            next.add(child.getObjectID());
+          }
+        }
+      }
+
+      level = next;
+    }
+
+    return examined;
+  }
+
+  private static boolean isElement(EcmascriptProtos.Object object) {
+    return object.hasClassName() && object.getClassName().endsWith("Element");
+  }
+
+  private Object buildScriptResult(Integer id, Map<Integer, EcmascriptProtos.Object> examined,
+                                   Set<Integer> visitedIDs) {
     if (visitedIDs.contains(id)) {
       // cyclic reference - returning null for the inner most reference
       return null;
     }
     visitedIDs.add(id);
-    ObjectList list = getObjectList(id);
-    EcmascriptProtos.Object obj = list.getPrototypeList(0).getObjectList(0);
-    String className = obj.getClassName();
 
+    EcmascriptProtos.Object obj = examined.get(id);
+    if (obj == null) {
+      // The object was garbage collected before we got to examine it
+      return null;
+    }
+
+    String className = obj.getClassName();
     List<Property> properties = obj.getPropertyListList();
 
     if (className.endsWith("Element")) {
@@ -631,7 +852,7 @@ public class EcmascriptService extends AbstractEcmascriptService implements
         if (type == Type.NUMBER && property.getName().equals("length")) {
           // ignore ?!?
         } else {
-          result.add(parseValue(type, property.getValue(), visitedIDs));
+          result.add(parseValue(type, property.getValue(), examined, visitedIDs));
         }
       }
       return result;
@@ -644,14 +865,16 @@ public class EcmascriptService extends AbstractEcmascriptService implements
         if (type == Type.NUMBER && property.getName().equals("length")) {
           // ignore ?!?
         } else {
-          result.put(property.getName(), parseValue(type, property.getValue(), visitedIDs));
+          result.put(property.getName(),
+                     parseValue(type, property.getValue(), examined, visitedIDs));
         }
       }
       return result;
     }
   }
 
-  private Object parseValue(Type type, Value value, Set<Integer> visitedIDs) {
+  private Object parseValue(Type type, Value value, Map<Integer, EcmascriptProtos.Object> examined,
+                            Set<Integer> visitedIDs) {
     switch (type) {
       case TRUE:
         return Boolean.valueOf(true);
@@ -666,7 +889,7 @@ public class EcmascriptService extends AbstractEcmascriptService implements
       case STRING:
         return value.getStr();
       case OBJECT:
-        return examineScriptResult(value.getObject().getObjectID(), visitedIDs);
+        return buildScriptResult(value.getObject().getObjectID(), examined, visitedIDs);
 
       case UNDEFINED:
       case NULL:
@@ -677,9 +900,7 @@ public class EcmascriptService extends AbstractEcmascriptService implements
   }
 
   private void processQueues() {
-    if (!garbageQueue.isEmpty()) {
-      processGcObjects();
-    }
+    processGcObjects();
 
     if (!runtimesQueue.isEmpty()) {
       processNewRuntimes();
@@ -691,48 +912,71 @@ public class EcmascriptService extends AbstractEcmascriptService implements
   }
 
   private void processNewRuntimes() {
-    while (!runtimesQueue.isEmpty()) {
-      Runtime runtime = getRuntime(runtimesQueue.poll());
-      if (runtime != null) {
-        if (runtime.getHtmlFramePath().equals("_top")
-            && windowManager.getActiveWindowId() == runtime.getWindowID()) {
-          setRuntime(runtime);
-        }
-        runtimesList.putIfAbsent(runtime.getRuntimeID(), runtime);
+    List<Integer> runtimeIds = new ArrayList<Integer>();
+    for (Integer runtimeId = runtimesQueue.poll(); runtimeId != null;
+         runtimeId = runtimesQueue.poll()) {
+      runtimeIds.add(runtimeId);
+    }
+
+    if (runtimeIds.isEmpty()) {
+      return;
+    }
+
+    for (Runtime runtime : getRuntimes(runtimeIds)) {
+      if (runtime.getHtmlFramePath().equals("_top")
+          && windowManager.getActiveWindowId() == runtime.getWindowID()) {
+        setRuntime(runtime);
       }
+      indexRuntime(runtime);
     }
   }
 
+  /**
+   * Releases objects which are no longer referenced on our side, at most once every
+   * OBJECT_RELEASE_INTERVAL.  The releases are sent in batches of at most {@link
+   * #MAX_RELEASE_BATCH} objects without waiting for their responses.
+   */
   private void processGcObjects() {
-    ReleaseObjectsArg.Builder builder = ReleaseObjectsArg.newBuilder();
-    builder.addAllObjectIDList(garbageQueue);
-    executeCommand(ESCommand.RELEASE_OBJECTS, builder);
-    garbageQueue.clear();
+    long now = System.currentTimeMillis();
+    if (now - lastRelease < OBJECT_RELEASE_INTERVAL.getMs()) {
+      return;
+    }
+    lastRelease = now;
+
+    for (List<Integer> objectIds = handles.collect(MAX_RELEASE_BATCH); !objectIds.isEmpty();
+         objectIds = handles.collect(MAX_RELEASE_BATCH)) {
+      ReleaseObjectsArg.Builder builder = ReleaseObjectsArg.newBuilder();
+      builder.addAllObjectIDList(objectIds);
+      executeCommandAsync(ESCommand.RELEASE_OBJECTS, builder);
+    }
   }
 
   /**
-   * Queries for the given runtime ID
+   * Queries for the given runtime IDs with a single {@link ESCommand#LIST_RUNTIMES}.
    *
-   * @param runtimeID The runtime id to query for
-   * @return {@link Runtime} object if found, <code>null</code> otherwise
+   * @param runtimeIDs the runtime IDs to query for
+   * @return the runtimes found, which may be fewer than asked for
    */
-  private Runtime getRuntime(int runtimeID) {
+  private List<Runtime> getRuntimes(List<Integer> runtimeIDs) {
     ListRuntimesArg.Builder builder = ListRuntimesArg.newBuilder();
-    builder.addRuntimeIDList(runtimeID);
+    builder.addAllRuntimeIDList(runtimeIDs);
     builder.setCreate(true);
 
     Response response = executeCommand(ESCommand.LIST_RUNTIMES, builder);
     RuntimeList.Builder runtimeListBuilder = RuntimeList.newBuilder();
     buildPayload(response, runtimeListBuilder);
-    List<Runtime> runtimes = runtimeListBuilder.build().getRuntimeListList();
-    return (runtimes.isEmpty()) ? null : runtimes.get(0);
+    return runtimeListBuilder.build().getRuntimeListList();
   }
 
   private ObjectList getObjectList(Integer id) {
+    return getObjectList(Arrays.asList(id));
+  }
+
+  private ObjectList getObjectList(List<Integer> ids) {
     ExamineObjectsArg.Builder builder = ExamineObjectsArg.newBuilder();
     builder.setExaminePrototypes(false);
     builder.setRuntimeID(getRuntimeId());
-    builder.addObjectIDList(id);
+    builder.addAllObjectIDList(ids);
     Response response = executeCommand(ESCommand.EXAMINE_OBJECTS, builder);
 
     ObjectList.Builder objListBuilder = ObjectList.newBuilder();
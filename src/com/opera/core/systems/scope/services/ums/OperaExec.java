@@ -19,6 +19,9 @@ package com.opera.core.systems.scope.services.ums;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.AbstractMessage.Builder;
+import com.google.protobuf.ByteString;
 
 import com.opera.core.systems.ScopeServices;
 import com.opera.core.systems.model.Canvas;
@@ -27,6 +30,7 @@ import com.opera.core.systems.model.OperaColor;
 import com.opera.core.systems.model.ScreenShotReply;
 import com.opera.core.systems.scope.AbstractService;
 import com.opera.core.systems.scope.ExecCommand;
+import com.opera.core.systems.scope.ScreenshotCache;
 import com.opera.core.systems.scope.exceptions.WindowNotFoundException;
 import com.opera.core.systems.scope.internal.OperaColors;
 import com.opera.core.systems.scope.internal.OperaIntervals;
@@ -52,11 +56,15 @@ import org.openqa.selenium.WebDriverException;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * The exec service handles user interactions such as key presses, mouse clicks, screenshot grabbing
  * and executing actions on Opera.
@@ -67,12 +75,31 @@ public class OperaExec extends AbstractService implements IOperaExec {
 
   private static Logger logger = Logger.getLogger(OperaExec.class.getName());
   private List<String> keys;
+  private ListenableFuture<Response> actionList;
   private Set<String> actions;
   private ScopeServices services;
 
   // TODO: Remove me, VERY UGLY HACK FOR window-id bug
   private List<String> excludedActions;
 
+  /**
+   * Commands sent in the current batch which have not been acknowledged yet, in order, with the
+   * message to throw if Opera replies to one with an error (null to ignore errors), see {@link
+   * #startBatch()}.
+   */
+  private final Map<ListenableFuture<Response>, String> batch =
+      new LinkedHashMap<ListenableFuture<Response>, String>();
+  private int batchDepth;
+
+  /**
+   * The maximum number of screenshots, and their maximum total size in bytes, to cache.
+   */
+  private static final int SCREENSHOT_CACHE_ENTRIES = 64;
+  private static final long SCREENSHOT_CACHE_BYTES = 32 * 1024 * 1024;
+
+  private final ScreenshotCache screenshots =
+      new ScreenshotCache(SCREENSHOT_CACHE_ENTRIES, SCREENSHOT_CACHE_BYTES);
+
   /*
   command Exec(ActionList) returns (Default) = 1;
   command GetActionInfoList(Default) returns (ActionInfoList) = 2;
@@ -103,12 +130,28 @@ public class OperaExec extends AbstractService implements IOperaExec {
     keys = new CopyOnWriteArrayList<String>();
   }
 
+  /**
+   * Requests the list of available actions without waiting for it, so that the round-trip overlaps
+   * with the initialization of the other services.  The list is waited for when it is first needed.
+   */
   public void init() {
-    actions = initActionList();
+    actionList = executeCommandAsync(ExecCommand.GET_ACTION_LIST, null);
+  }
+
+  private synchronized Set<String> getActions() {
+    if (actions == null) {
+      actions = initActionList();
+    }
+    return actions;
   }
 
   private Set<String> initActionList() {
-    Response response = executeCommand(ExecCommand.GET_ACTION_LIST, null);
+    Response response =
+        services.waitForResponse(actionList, OperaIntervals.RESPONSE_TIMEOUT.getMs());
+    if (response == null) {
+      throw new WebDriverException("Unable to get the list of actions");
+    }
+
     ActionInfoList.Builder builder = ActionInfoList.newBuilder();
     buildPayload(response, builder);
     ActionInfoList infoList = builder.build();
@@ -131,36 +174,45 @@ public class OperaExec extends AbstractService implements IOperaExec {
       throw new IllegalArgumentException("Can't type empty string");
     }
 
-    if (keyIsPressed(OperaKeys.SHIFT.getValue())) {
+    String shift = OperaKeys.SHIFT.getValue();
+    boolean shiftPressed = keyIsPressed(shift);
+    if (shiftPressed) {
       using = using.toUpperCase();
     }
 
+    // All key presses are sent as a single action list, rather than one command per key
+    int windowId = services.getWindowManager().getActiveWindowId();
+    ActionList.Builder builder = ActionList.newBuilder();
+
     for (int i = 0; i < using.length(); ++i) {
-      char ch = using.charAt(i);
-      if (Character.isUpperCase(ch)) {
-        // If shift is already pressed down, we don't need to press it for capitals.  We don't
-        // release it if we're typing lower-case, because if the user has pressed shift and then
-        // types lower-case presumably they want to type upper-case characters.
-        boolean releaseShift = false;
-
-        if (!keyIsPressed(OperaKeys.SHIFT.getValue())) {
-          key(OperaKeys.SHIFT.getValue(), false);
-          releaseShift = true;
-        }
+      String key = String.valueOf(using.charAt(i));
 
-        key(String.valueOf(ch));
+      // If shift is already pressed down, we don't need to press it for capitals.  We don't release
+      // it if we're typing lower-case, because if the user has pressed shift and then types
+      // lower-case presumably they want to type upper-case characters.
+      boolean pressShift = !shiftPressed && Character.isUpperCase(using.charAt(i));
 
-        if (releaseShift) {
-          key(OperaKeys.SHIFT.getValue(), true);
-        }
-      } else {
-        key(String.valueOf(ch));
+      if (pressShift) {
+        builder.addActionList(buildKeyAction(shift, false, windowId));
+      }
+
+      builder.addActionList(buildKeyAction(key, false, windowId));
+      builder.addActionList(buildKeyAction(key, true, windowId));
+
+      if (pressShift) {
+        builder.addActionList(buildKeyAction(shift, true, windowId));
       }
     }
 
-    /*
-    action("_type", using);
-    */
+    send(ExecCommand.EXEC, builder, "Unexpected error while typing: " + using);
+  }
+
+  private Action.Builder buildKeyAction(String key, boolean up, int windowId) {
+    Action.Builder action = Action.newBuilder();
+    action.setName(up ? "_keyup" : "_keydown");
+    action.setValue(key);
+    action.setWindowID(windowId);
+    return action;
   }
 
   public void mouseAction(int x, int y, OperaMouseKeys... keys) {
@@ -191,10 +243,10 @@ public class OperaExec extends AbstractService implements IOperaExec {
     // we provide an iteration on number of clicks here.
     if (VersionUtil.compare(getVersion(), "2.2") >= 0) {
       actionBuilder.setRepeatCount(count);
-      executeCommand(ExecCommand.SEND_MOUSE_ACTION, actionBuilder);
+      send(ExecCommand.SEND_MOUSE_ACTION, actionBuilder, null);
     } else {
       for (int i = 0; i < count; i++) {
-        executeCommand(ExecCommand.SEND_MOUSE_ACTION, actionBuilder.clone());
+        send(ExecCommand.SEND_MOUSE_ACTION, actionBuilder.clone(), null);
       }
 
       // If multi-clicking, wait some time after executing the mouse action so that Opera doesn't
@@ -210,13 +262,13 @@ public class OperaExec extends AbstractService implements IOperaExec {
   }
 
   public Set<String> getActionList() {
-    return actions;
+    return getActions();
   }
 
   public void action(String using, int windowID, String... params) {
     using = using.toLowerCase();
 
-    if (!actions.contains(using)) {
+    if (!getActions().contains(using)) {
       throw new WebDriverException("The requested action is not supported: " + using);
     }
 
@@ -238,13 +290,11 @@ public class OperaExec extends AbstractService implements IOperaExec {
 
     // type.setSpace("preserve");
     builder.addActionList(actionBuilder);
-    if (executeCommand(ExecCommand.EXEC, builder) == null) {
-      throw new WebDriverException("Unexpected error while calling action: " + using);
-    }
+    send(ExecCommand.EXEC, builder, "Unexpected error while calling action: " + using);
   }
 
   public void action(String using, int data, String dataString, String dataStringParam) {
-    if (!actions.contains(using)) {
+    if (!getActions().contains(using)) {
       throw new UnsupportedCommandException("The requested action is not supported: " + using);
     }
 
@@ -257,9 +307,7 @@ public class OperaExec extends AbstractService implements IOperaExec {
 
     // type.setSpace("preserve");
     builder.addActionList(actionBuilder);
-    if (executeCommand(ExecCommand.EXEC, builder) == null) {
-      throw new WebDriverException("Unexpected error while calling action: " + using);
-    }
+    send(ExecCommand.EXEC, builder, "Unexpected error while calling action: " + using);
   }
 
   // TODO: Sending params, we have commas, spaces, what?
@@ -292,6 +340,49 @@ public class OperaExec extends AbstractService implements IOperaExec {
     }
   }
 
+  public void startBatch() {
+    batchDepth++;
+  }
+
+  public void finishBatch() {
+    if (batchDepth == 0 || --batchDepth > 0) {
+      return;
+    }
+
+    Map<ListenableFuture<Response>, String> pending =
+        new LinkedHashMap<ListenableFuture<Response>, String>(batch);
+    batch.clear();
+
+    String error = null;
+    for (Map.Entry<ListenableFuture<Response>, String> command : pending.entrySet()) {
+      Response response =
+          services.waitForResponse(command.getKey(), OperaIntervals.RESPONSE_TIMEOUT.getMs());
+      if (response == null && error == null) {
+        error = command.getValue();
+      }
+    }
+
+    if (error != null) {
+      throw new WebDriverException(error);
+    }
+  }
+
+  /**
+   * Sends a command, or adds it to the current batch if there is one.
+   *
+   * @param command the command to send
+   * @param builder the payload of the command
+   * @param error   the message of the exception to throw if Opera replies with an error, or null to
+   *                ignore errors
+   */
+  private void send(ExecCommand command, Builder<?> builder, String error) {
+    if (batchDepth > 0) {
+      batch.put(executeCommandAsync(command, builder), error);
+    } else if (executeCommand(command, builder) == null && error != null) {
+      throw new WebDriverException(error);
+    }
+  }
+
   public ScreenShotReply containsColor(Canvas canvas, long timeout, OperaColors... colors) {
     ScreenWatcher.Builder builder = ScreenWatcher.newBuilder();
     Area.Builder areaBuilder = Area.newBuilder();
@@ -343,6 +434,50 @@ public class OperaExec extends AbstractService implements IOperaExec {
     return watcherBuilder.build();
   }
 
+  public List<ScreenShotReply> screenWatcher(List<Canvas> canvases, long timeout,
+                                             List<String> hashes) {
+    checkArgument(canvases.size() == hashes.size(), "There must be one hash for every canvas");
+
+    int windowId = services.getWindowManager().getActiveWindowId();
+    List<ListenableFuture<Response>> pending =
+        new ArrayList<ListenableFuture<Response>>(canvases.size());
+
+    // Send all screen watchers before waiting for any of them.  Each one is given the same timeout,
+    // so that no tile is captured before the page has had time to settle.
+    int timeOut = (int) Math.max(timeout, 1);
+    for (int i = 0; i < canvases.size(); i++) {
+      Canvas canvas = canvases.get(i);
+      ScreenWatcher.Builder builder = ScreenWatcher.newBuilder();
+      builder.setArea(Area.newBuilder()
+                          .setX(canvas.getX())
+                          .setY(canvas.getY())
+                          .setH(canvas.getHeight())
+                          .setW(canvas.getWidth()));
+      if (hashes.get(i) != null) {
+        builder.addMd5List(hashes.get(i));
+      }
+      builder.setTimeOut(timeOut);
+      builder.setWindowID(windowId);
+
+      pending.add(executeCommandAsync(ExecCommand.SETUP_SCREEN_WATCHER, builder));
+    }
+
+    List<ScreenShotReply> replies = new ArrayList<ScreenShotReply>(pending.size());
+    for (ListenableFuture<Response> future : pending) {
+      Response response =
+          services.waitForResponse(future, OperaIntervals.RESPONSE_TIMEOUT.getMs() + timeout);
+      if (response == null) {
+        throw new WebDriverException("Unexpected error while taking screenshot");
+      }
+
+      ScreenWatcherResult.Builder result = ScreenWatcherResult.newBuilder();
+      buildPayload(response, result);
+      replies.add(new ScreenShotReply(result.getMd5(), result.getPng()));
+    }
+
+    return replies;
+  }
+
   private ColorSpec.Builder convertColor(OperaColor color) {
     ColorSpec.Builder builder = ColorSpec.newBuilder();
     builder.setBlueHigh(color.getHighBlue());
@@ -373,9 +508,33 @@ public class OperaExec extends AbstractService implements IOperaExec {
       builder.setIncludeImage(false);
     }
 
-    ScreenWatcherResult result = executeScreenWatcher(builder, (int) timeout);
+    // Let Opera skip sending images we already have
+    List<String> cached = includeImage ? screenshots.hashes() : ImmutableList.<String>of();
+    ScreenWatcherResult result =
+        executeScreenWatcher(builder.clone().addAllMd5List(cached), (int) timeout);
+
+    String md5 = result.getMd5();
+    ByteString png = result.getPng();
+
+    if (includeImage && !png.isEmpty()) {
+      screenshots.put(md5, png);
+    } else if (includeImage && cached.contains(md5) && !Arrays.asList(hashes).contains(md5)) {
+      // The image matched one of the cached ones rather than one of the caller's
+      ByteString image = screenshots.get(md5);
+      if (image == null) {
+        // Evicted in the mean time
+        result = executeScreenWatcher(builder, (int) timeout);
+        image = result.getPng();
+        if (!image.isEmpty()) {
+          screenshots.put(result.getMd5(), image);
+        }
+      }
+
+      md5 = result.getMd5();
+      png = image;
+    }
 
-    return new ScreenShotReply(result.getMd5(), result.getPng().toByteArray());
+    return new ScreenShotReply(md5, png);
   }
 
 }
\ No newline at end of file
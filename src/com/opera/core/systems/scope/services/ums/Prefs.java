@@ -16,9 +16,12 @@ limitations under the License.
 
 package com.opera.core.systems.scope.services.ums;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import com.opera.core.systems.ScopeServices;
 import com.opera.core.systems.scope.AbstractService;
 import com.opera.core.systems.scope.PrefsCommand;
+import com.opera.core.systems.scope.internal.OperaIntervals;
 import com.opera.core.systems.scope.protos.PrefsProtos.GetPrefArg;
 import com.opera.core.systems.scope.protos.PrefsProtos.GetPrefArg.Mode;
 import com.opera.core.systems.scope.protos.PrefsProtos.ListPrefsArg;
@@ -31,6 +34,7 @@ import com.opera.core.systems.scope.services.IPrefs;
 
 import org.openqa.selenium.WebDriverException;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class Prefs extends AbstractService implements IPrefs {
@@ -76,6 +80,10 @@ public class Prefs extends AbstractService implements IPrefs {
 
     Response response = executeCommand(PrefsCommand.LIST_PREFS, listPrefBuilder);
 
+    if (response == null) {
+      throw new WebDriverException("Internal error while listing preferences");
+    }
+
     PrefList.Builder prefListBuilder = PrefList.newBuilder();
     buildPayload(response, prefListBuilder);
     PrefList prefList = prefListBuilder.build();
@@ -96,4 +104,23 @@ public class Prefs extends AbstractService implements IPrefs {
     }
   }
 
-}
\ No newline at end of file
+  public void setPrefs(List<SetPrefArg> prefs) {
+    List<ListenableFuture<Response>> pending =
+        new ArrayList<ListenableFuture<Response>>(prefs.size());
+    for (SetPrefArg pref : prefs) {
+      pending.add(executeCommandAsync(PrefsCommand.SET_PREF, pref.toBuilder()));
+    }
+
+    boolean failed = false;
+    for (ListenableFuture<Response> future : pending) {
+      if (services.waitForResponse(future, OperaIntervals.RESPONSE_TIMEOUT.getMs()) == null) {
+        failed = true;
+      }
+    }
+
+    if (failed) {
+      throw new WebDriverException("Internal error while setting preferences");
+    }
+  }
+
+}
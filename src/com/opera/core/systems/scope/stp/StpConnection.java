@@ -16,7 +16,7 @@ limitations under the License.
 
 package com.opera.core.systems.scope.stp;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
 
 import com.opera.core.systems.scope.DesktopUtilsCommand;
@@ -39,9 +39,11 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,13 +52,34 @@ public class StpConnection implements SocketListener {
   private final Logger logger = Logger.getLogger(this.getClass().getName());
   private SocketChannel socketChannel;
 
-  // Outgoing send queue
+  // Outgoing send queue, holding buffers ready to be written (position at the first unsent byte)
   private final ArrayBlockingQueue<ByteBuffer> requests;
+
+  // Buffers taken off the send queue by the selector thread that are not fully written yet
+  private final ArrayDeque<ByteBuffer> outgoing = new ArrayDeque<ByteBuffer>();
+  private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+
+  // Recycled send buffers, so sending a command does not allocate a new buffer each time
+  private final ArrayBlockingQueue<ByteBuffer> sendBufferPool =
+      new ArrayBlockingQueue<ByteBuffer>(SEND_BUFFER_POOL_SIZE);
+
+  // Whether write interest has been requested and not yet cleared by canWrite
+  private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+  private static final int MAX_GATHER_BUFFERS = 64;
+  private static final int SEND_BUFFER_POOL_SIZE = 16;
+  private static final int MIN_SEND_BUFFER_SIZE = 4096;
+  private static final int MAX_POOLED_SEND_BUFFER_SIZE = 65536;
   private ByteBuffer recvBuffer;
 
+  // Total size of the partial STP/1 frame at the front of recvBuffer, if known
+  private int expectedFrameSize;
+
+  private static final int RECV_BUFFER_SIZE = 65536;
+  private static final int MAX_IDLE_RECV_BUFFER_SIZE = 1024 * 1024;
+
   // For STP1
   final byte[] prefix = {'S', 'T', 'P', 1};
-  private ByteString stpPrefix = ByteString.copyFrom(prefix);
 
   private EventHandler eventHandler;
   private UmsEventParser stp1EventHandler;
@@ -100,8 +123,7 @@ public class StpConnection implements SocketListener {
     this.eventHandler = eventHandler;
     this.monitor = monitor;
     requests = new ArrayBlockingQueue<ByteBuffer>(1024);
-    recvBuffer = ByteBuffer.allocateDirect(65536);
-    recvBuffer.limit(0);
+    recvBuffer = ByteBuffer.allocate(RECV_BUFFER_SIZE);
 
     socket.configureBlocking(false);
 
@@ -127,26 +149,32 @@ public class StpConnection implements SocketListener {
    * @param command to add to the request queue
    */
   public void send(Command command) {
-    logger.finest(command.toString());
-    byte[] payload = command.toByteArray();
-    int totalSize = payload.length + 1; // increment 1 for message type
-
-    ByteBuffer outMessageSize = encodeMessageSize(totalSize);
+    // Log what is being sent.  Printing a message is expensive, so only do it if it is logged.
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest("SEND: " + command.toString());
+    }
 
-    // create the message
-    ByteBuffer buffer = ByteBuffer.allocateDirect(prefix.length
-                                                  + outMessageSize.position() + 1 + payload.length);
-    buffer.put(prefix, 0, prefix.length);
-    outMessageSize.flip();
-    buffer.put(outMessageSize);
-    buffer.put((byte) 1);
-    buffer.put(payload);
+    int payloadSize = command.getSerializedSize();
+    int totalSize = payloadSize + 1; // increment 1 for message type
+    int frameSize = prefix.length + CodedOutputStream.computeRawVarint32Size(totalSize) + totalSize;
 
-    // Log what is being sent.
-    logger.finest("SEND: " + command.toString());
+    // Serialize the frame straight into a (recycled) send buffer
+    ByteBuffer buffer = obtainSendBuffer(frameSize);
+    CodedOutputStream output =
+        CodedOutputStream.newInstance(buffer.array(), buffer.arrayOffset(), frameSize);
+    try {
+      output.writeRawBytes(prefix);
+      output.writeRawVarint32(totalSize);
+      output.writeRawByte(1);
+      command.writeTo(output);
+      output.checkNoSpaceLeft();
+    } catch (IOException e) {
+      // Writing to a correctly sized array cannot fail
+      throw new CommunicationException("Unable to serialize command: " + e.getMessage());
+    }
+    buffer.limit(frameSize);
 
-    requests.add(buffer);
-    monitor.modify(socketChannel, this, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    enqueue(buffer);
   }
 
   public void sendEnableStp1() {
@@ -174,10 +202,34 @@ public class StpConnection implements SocketListener {
       connectionHandler.onException(e);
       return;
     }
-    ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
-    buffer.put(bytes);
+    enqueue(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Adds a buffer to the send queue, and asks the selector for write interest unless a write is
+   * already scheduled.
+   */
+  private void enqueue(ByteBuffer buffer) {
     requests.add(buffer);
-    monitor.modify(socketChannel, this, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    if (writeScheduled.compareAndSet(false, true)) {
+      monitor.modify(socketChannel, this, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+  }
+
+  private ByteBuffer obtainSendBuffer(int size) {
+    ByteBuffer buffer = sendBufferPool.poll();
+    if (buffer == null || buffer.capacity() < size) {
+      // A pooled buffer which is too small is dropped, so the pool adapts to the message sizes seen
+      buffer = ByteBuffer.allocate(Math.max(MIN_SEND_BUFFER_SIZE, Integer.highestOneBit(size) << 1));
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  private void recycleSendBuffer(ByteBuffer buffer) {
+    if (buffer.hasArray() && buffer.capacity() <= MAX_POOLED_SEND_BUFFER_SIZE) {
+      sendBufferPool.offer(buffer);
+    }
   }
 
   public boolean canRead(SelectableChannel channel) throws IOException {
@@ -191,80 +243,75 @@ public class StpConnection implements SocketListener {
       throw new IOException("Socket lost");
     }
 
-    // Read as much data as possible into buffer.
-    ByteBuffer readBuffer = ByteBuffer.allocateDirect(1000);
-    int readSize = 0;
-
-    // Continue to read data and read messages until there are no messages
-    boolean didNotFindAnyMessage = false;
-    while (!didNotFindAnyMessage) {
-      logger.finest("canReadLoop!");
+    // recvBuffer is kept in fill mode between calls: the bytes between 0 and its position are
+    // data which has been received but not yet decoded (at most one partial message).
+    int readSize;
+    do {
+      ensureReadCapacity();
+
+      try {
+        readSize = socketChannel.read(recvBuffer);
+      } catch (IOException ex) {
+        logger.warning("Channel closed, causing exception: " + ex.getMessage());
+        readSize = -1; // Same as error from socketChannel.read
+      }
 
-      // Read as much data as possible (until recvBuffer is full OR we don't get
-      // any more data)
-      do {
-        readBuffer.clear();
+      if (readSize < 0) {
         try {
-          // do we have a socket
-          if (socketChannel == null) {
-            readSize = -1;
+          logger.log(Level.FINER, "Channel closed: {0}",
+                     socketChannel.socket().getInetAddress().getHostName());
+        } catch (NullPointerException e) {
+          // ignore
+        }
+        connectionHandler.onDisconnect();
+        monitor.remove(socketChannel);
+        return false;
+      }
 
-            // do we have room in our buffer?
-          } else {
+      logger.finest(String.format("Read %d bytes, new buffer size is %d",
+                                  readSize, recvBuffer.position()));
 
-            readSize = socketChannel.read(readBuffer);
-            if (readSize > 0) {
-              readBuffer.limit(readSize);
-              readBuffer.position(0);
-            }
+      // Decode as many complete messages as possible straight out of the buffer, then move what
+      // is left of a partial message to the front.
+      recvBuffer.flip();
+      while (socketChannel != null && readMessage(recvBuffer)) {
+        // keep decoding
+      }
+      recvBuffer.compact();
+      releaseReadCapacity();
+    } while (readSize > 0 && socketChannel != null);
 
-          }
+    return true;
+  }
 
-        } catch (IOException ex) {
-          logger.warning("Channel closed, causing exception: " + ex.getMessage());
-          readSize = -1; // Same as error from socketChannel.read
-        }
+  /**
+   * Makes sure there is room in the receive buffer for the next read.  If we know the size of the
+   * partial message at the front of the buffer the buffer is grown to fit all of it at once, so
+   * that large responses (screenshots, object dumps) are only moved once.
+   */
+  private void ensureReadCapacity() {
+    int required = Math.max(recvBuffer.position() + 1, expectedFrameSize);
+    if (required <= recvBuffer.capacity()) {
+      return;
+    }
 
-        if (readSize < 0) {
-          try {
-            logger.log(Level.FINER, "Channel closed: {0}",
-                       socketChannel.socket().getInetAddress().getHostName());
-          } catch (NullPointerException e) {
-            // ignore
-          }
-          connectionHandler.onDisconnect();
-          monitor.remove(socketChannel);
-          return false;
-        } else if (readSize > 0) {
-
-          // Double buffer size if needed!
-          if (recvBuffer.limit() + readBuffer.limit() >= recvBuffer.capacity()) {
-            logger.finest("Doubled the size of our recv buffer");
-            ByteBuffer newRecvBuffer = ByteBuffer.allocate(recvBuffer.capacity() * 2);
-            newRecvBuffer.clear();
-            recvBuffer.position(0);
-            newRecvBuffer.limit(recvBuffer.limit());
-            newRecvBuffer.position(0);
-            newRecvBuffer.put(recvBuffer);
-            newRecvBuffer.position(0);
-            recvBuffer = newRecvBuffer;
-          }
+    int capacity = Math.max(required, recvBuffer.capacity() * 2);
+    logger.finest("Growing recv buffer to " + capacity + " bytes");
 
-          recvBuffer.position(recvBuffer.limit());
-          recvBuffer.limit(recvBuffer.limit() + readSize);// increase limit!
-          recvBuffer.put(readBuffer);
-          logger.finest(String.format("Read %d bytes, new buffer size is %d",
-                                      readSize, recvBuffer.limit()));
-        }
-      } while (readSize > 0);
+    ByteBuffer newRecvBuffer = ByteBuffer.allocate(capacity);
+    recvBuffer.flip();
+    newRecvBuffer.put(recvBuffer);
+    recvBuffer = newRecvBuffer;
+  }
 
-      // Read as many messages as possible, and only
-      didNotFindAnyMessage = true;
-      while (readMessage(recvBuffer)) {
-        didNotFindAnyMessage = false;
-      }
+  /**
+   * Drops an oversized receive buffer once it has been drained, so that a single huge message does
+   * not pin its buffer for the lifetime of the connection.
+   */
+  private void releaseReadCapacity() {
+    if (recvBuffer.position() == 0 && recvBuffer.capacity() > MAX_IDLE_RECV_BUFFER_SIZE) {
+      recvBuffer = ByteBuffer.allocate(RECV_BUFFER_SIZE);
     }
-    return true;
   }
 
   public boolean canWrite(SelectableChannel channel) throws IOException {
@@ -272,26 +319,43 @@ public class StpConnection implements SocketListener {
       throw new IOException("Socket lost");
     }
 
-    int totalWritten = 0;
-    while (!requests.isEmpty()) {
-      ByteBuffer buffer = requests.poll();
-      buffer.flip();
-      int written = 0;
+    long totalWritten = 0;
+    while (true) {
+      while (outgoing.size() < MAX_GATHER_BUFFERS && !requests.isEmpty()) {
+        outgoing.add(requests.poll());
+      }
 
-      do {
-        written = socketChannel.write(buffer);
-        if (written <= 0) {
-          break;
-        }
-        if (written > 0) {
-          totalWritten += written;
-        }
-      } while (buffer.hasRemaining());
+      if (outgoing.isEmpty()) {
+        break;
+      }
+
+      // Write everything we have queued in one gathering write
+      int count = outgoing.size();
+      outgoing.toArray(gatherBuffers);
+      long written = socketChannel.write(gatherBuffers, 0, count);
+      Arrays.fill(gatherBuffers, 0, count, null);
+
+      if (written > 0) {
+        totalWritten += written;
+      }
+
+      while (!outgoing.isEmpty() && !outgoing.peek().hasRemaining()) {
+        recycleSendBuffer(outgoing.poll());
+      }
+
+      if (!outgoing.isEmpty()) {
+        // Socket buffer is full; wait for the next write event
+        logger.finest("Wrote " + totalWritten + " bytes");
+        return true;
+      }
     }
 
     logger.finest("Wrote " + totalWritten + " bytes");
 
-    return (!requests.isEmpty());
+    // Clear the flag before checking the queue once more, so that a message queued concurrently is
+    // either picked up here or schedules a new write itself.
+    writeScheduled.set(false);
+    return !requests.isEmpty();
   }
 
   /**
@@ -356,160 +420,114 @@ public class StpConnection implements SocketListener {
   }
 
   private void signalEvent(Event event) {
-    logger.finest("EVENT " + event.toString());
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest("EVENT " + event.toString());
+    }
     stp1EventHandler.handleEvent(event);
   }
 
   /**
-   * Reads a message from the buffer, and pops the used data out of the buffer.
+   * Decodes a single message from the buffer, which must be in drain mode (data between position
+   * and limit).  On success the position is advanced past the message; if the buffer does not
+   * hold a complete message the position is left untouched.
    *
    * @param buffer the buffer containing messages
    * @return true if we got a message from the buffer
    */
   private boolean readMessage(ByteBuffer buffer) {
-
-    // logger.finest("readMessage: " + bytesRead + " bytes read, remaining=" +
-    // remainingBytes.length + ", state=" + state.toString() + ", recurse=" +
-    // recurse);
-
-    buffer.position(0);
-    int bytesWeHaveBeenReading = 0;
+    if (!buffer.hasRemaining()) {
+      logger.finest("No messages in empty buffer");
+      return false;
+    }
 
     switch (state) {
       case SERVICELIST:
-        StringBuilder builder = new StringBuilder();
-        builder.append(buffer.asCharBuffer());
-        parseServiceList(builder.toString());
-        buffer.position(0);// reset position!
-        bytesWeHaveBeenReading = buffer.limit(); // bytesWeHaveBeenreading = all
-        // bytes in buffer!
-        break;
+        parseServiceList(buffer.asCharBuffer().toString());
+        buffer.position(buffer.limit());
+        return true;
 
       case HANDSHAKE:
-        if (buffer.limit() >= 6) {
-          byte[] dst = new byte[6];
-          buffer.position(0);// read from start!
-          buffer.get(dst);
-          buffer.position(0);// reset position!
-          bytesWeHaveBeenReading = 6; // 6 bytes will be removed from buffer
-          String handShake = new String(dst);
-          if (!handShake.equals("STP/1\n")) {
-            close();
-            connectionHandler.onException(
-                new CommunicationException("Expected STP/1, got: " + handShake));
-          }
-          setState(State.EMPTY);
-          connectionHandler.onHandshake(true);
+        if (buffer.remaining() < 6) {
+          return false;
         }
-        break;
 
-      case EMPTY: // read 4 byte header: STP/0
-        if (buffer.limit() >= 4) {
-          byte[] headerPrefix = new byte[4];
-          buffer.get(headerPrefix);
-          buffer.position(0);
-          bytesWeHaveBeenReading = 4;
-          ByteString incomingPrefix = ByteString.copyFrom(headerPrefix);
-          if (stpPrefix.equals(incomingPrefix)) {
-            setState(State.STP);
-            /*
-            if(buffer.hasRemaining()){
-                buffer.compact();
-                readMessage(buffer, buffer.position(), true);
-            } else {
-                buffer.clear();
-            }
-            */
-          } else {
+        byte[] dst = new byte[6];
+        buffer.get(dst);
+        String handShake = new String(dst);
+        if (!handShake.equals("STP/1\n")) {
+          close();
+          connectionHandler.onException(
+              new CommunicationException("Expected STP/1, got: " + handShake));
+        }
+        setState(State.EMPTY);
+        connectionHandler.onHandshake(true);
+        return true;
+
+      case EMPTY: // read 4 byte header: STP/1
+        if (buffer.remaining() < prefix.length) {
+          return false;
+        }
+
+        for (byte expected : prefix) {
+          if (buffer.get() != expected) {
             close();
-            connectionHandler.onException(
-                new CommunicationException("Expected empty header"));
+            connectionHandler.onException(new CommunicationException("Expected empty header"));
+            return true;
           }
         }
-        break;
+        setState(State.STP);
+        return true;
 
       case STP:
-        // Try to read size
-        buffer.position(0);
-        if (buffer.limit() <= 0) {
-          logger.finest("STP: Empty buffer");
-          break;
+        int start = buffer.position();
+        int messageSize = readRawVarint32(buffer);
+        if (messageSize < 0) {
+          // Size itself has not been fully received yet
+          buffer.position(start);
+          return false;
+        } else if (messageSize == 0) {
+          close();
+          connectionHandler.onException(new CommunicationException("Received empty message"));
+          return true;
         }
-        int messageSize = readRawVarint32(buffer);// read part of buffer
-        bytesWeHaveBeenReading = buffer.position();
-        buffer.position(0);
-
-        // If we got size, read more, if not just leave it!
-        if (buffer.limit() >= bytesWeHaveBeenReading + messageSize) {
-          buffer.position(bytesWeHaveBeenReading);
 
-          // Read type and Payload!
-          int messageType = buffer.get();
-          bytesWeHaveBeenReading += 1;
-
-          byte[] payload = new byte[--messageSize];
-          buffer.get(payload);
-          buffer.position(0);
-
-          bytesWeHaveBeenReading += messageSize; // 32 bits = 4 bytes :-)
-
-          setState(State.EMPTY);
-
-          try {
-            processMessage(messageType, payload);
-          } catch (IOException e) {
-            close();
-            connectionHandler.onException(new CommunicationException(
-                "Error while processing the message: " + e.getMessage()));
-          }
-        } else {
-          // 4 + messageSize because of the int at the beginning
+        if (buffer.remaining() < messageSize) {
+          expectedFrameSize = buffer.position() - start + messageSize;
           logger.finest(String.format("Tried to read a message and expected %d bytes, but got %d",
-                                      (4 + messageSize), buffer.limit()));
-
-          buffer.position(0);
-          bytesWeHaveBeenReading = 0;
+                                      expectedFrameSize, buffer.limit() - start));
+          buffer.position(start);
+          return false;
         }
-        break;
 
-    }
+        expectedFrameSize = 0;
+        int messageType = buffer.get();
+        int payloadSize = messageSize - 1;
+        int payloadOffset = buffer.arrayOffset() + buffer.position();
+        buffer.position(buffer.position() + payloadSize);
 
-    // Pop number of read bytes from
-    if (bytesWeHaveBeenReading > 0) {
-
-      // Pop X bytes, and keep message for the rest
-      int rest = buffer.limit() - bytesWeHaveBeenReading;
-      if (rest <= 0) {
-        buffer.clear();
-        buffer.limit(0);
-      } else {
-        byte[] temp = new byte[rest];
-
-        buffer.position(bytesWeHaveBeenReading);
-        buffer.get(temp, 0, rest);
-
-        buffer.clear();
-        buffer.limit(rest);
-        buffer.position(0);
-        buffer.put(temp, 0, rest);
-        buffer.position(0);// set position back to start!
-      }
+        setState(State.EMPTY);
 
-      logger.finest(String.format("Did read message of %d bytes, new buffer size is %d",
-                                  bytesWeHaveBeenReading, buffer.limit()));
+        // Parse the payload in place.  Protobuf copies any bytes fields it keeps, so the buffer
+        // can safely be reused once the message has been handled.
+        CodedInputStream payload =
+            CodedInputStream.newInstance(buffer.array(), payloadOffset, payloadSize);
+        try {
+          processMessage(messageType, payload);
+        } catch (IOException e) {
+          close();
+          connectionHandler.onException(new CommunicationException(
+              "Error while processing the message: " + e.getMessage()));
+        }
 
-      return true; // We did read a message :-)
-    } else {
-      if (buffer.limit() > 0) {
-        logger.finest("Did NOT read message from buffer of size " + buffer.limit());
-      } else {
-        logger.finest("No messages in empty buffer");
-      }
-      return false;
+        logger.finest(String.format("Did read message of %d bytes, %d bytes left in buffer",
+                                    buffer.position() - start, buffer.remaining()));
+        return true;
     }
+
+    return false;
   }
 
-  private void processMessage(int stpType, byte[] payload) throws IOException {
+  private void processMessage(int stpType, CodedInputStream payload) throws IOException {
     logger.finest("processMessage: " + stpType);
 
     switch (stpType) {
@@ -518,18 +536,24 @@ public class StpConnection implements SocketListener {
       case 2: // response
         // Log what is being sent.
         Response response = Response.parseFrom(payload);
-        logger.finest("RECV RESPONSE: " + response.toString());
+        if (logger.isLoggable(Level.FINEST)) {
+          logger.finest("RECV RESPONSE: " + response.toString());
+        }
         signalResponse(response.getTag(), response);
         break;
 
       case 3: // event
         Event event = Event.parseFrom(payload);
-        logger.finest("RECV EVENT: " + event.toString());
+        if (logger.isLoggable(Level.FINEST)) {
+          logger.finest("RECV EVENT: " + event.toString());
+        }
         signalEvent(event);
         break;
       case 4: // error
         Error error = Error.parseFrom(payload);
-        logger.finest("RECV ERROR: " + error.toString());
+        if (logger.isLoggable(Level.FINEST)) {
+          logger.finest("RECV ERROR: " + error.toString());
+        }
 
         String service = error.getService();
         int status = error.getStatus();
@@ -555,51 +579,35 @@ public class StpConnection implements SocketListener {
 
   // protobuf methods, taken from the protobuf library by Google
   // explained: http://code.google.com/apis/protocolbuffers/docs/encoding.html#varints
+
+  /**
+   * Reads a varint from the buffer.
+   *
+   * @return the value, or -1 if the buffer ends before the varint does
+   */
   private int readRawVarint32(ByteBuffer bytes) {
-    byte tmp = bytes.get();
-    if (tmp >= 0) {
-      return tmp;
-    }
-    int result = tmp & 0x7f;
-    if ((tmp = bytes.get()) >= 0) {
-      result |= tmp << 7;
-    } else {
-      result |= (tmp & 0x7f) << 7;
-      if ((tmp = bytes.get()) >= 0) {
-        result |= tmp << 14;
-      } else {
-        result |= (tmp & 0x7f) << 14;
-        if ((tmp = bytes.get()) >= 0) {
-          result |= tmp << 21;
-        } else {
-          result |= (tmp & 0x7f) << 21;
-          result |= (tmp = bytes.get()) << 28;
-          if (tmp < 0) {
-            // Discard upper 32 bits.
-            for (int i = 0; i < 5; i++) {
-              if (bytes.get() >= 0) {
-                return result;
-              }
-            }
-            connectionHandler.onException(new WebDriverException("Error while reading raw int"));
-          }
-        }
+    int result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (!bytes.hasRemaining()) {
+        return -1;
       }
-    }
-    return result;
-  }
 
-  private ByteBuffer encodeMessageSize(int value) {
-    ByteBuffer buffer = ByteBuffer.allocateDirect(CodedOutputStream.computeRawVarint32Size(value));
-    while (true) {
-      if ((value & ~0x7F) == 0) {
-        buffer.put((byte) (value));
-        return buffer;
-      } else {
-        buffer.put((byte) ((value & 0x7F) | 0x80));
-        value >>>= 7;
+      byte tmp = bytes.get();
+      if (shift < 32) {
+        result |= (tmp & 0x7f) << shift;
+      }
+      if (tmp >= 0) {
+        // Sizes beyond 2^31 cannot be buffered anyway
+        if (result < 0) {
+          break;
+        }
+        return result;
       }
     }
+
+    close();
+    connectionHandler.onException(new WebDriverException("Error while reading raw int"));
+    return -1;
   }
 
 }
\ No newline at end of file
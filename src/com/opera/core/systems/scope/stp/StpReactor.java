@@ -0,0 +1,150 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope.stp;
+
+import com.opera.core.systems.scope.handlers.EventHandler;
+import com.opera.core.systems.scope.handlers.IConnectionHandler;
+import com.opera.core.systems.scope.internal.OperaIntervals;
+import com.opera.core.systems.util.SocketMonitor;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A fixed pool of selector threads that any number of STP connections can be multiplexed over.
+ *
+ * Without a reactor every {@link com.opera.core.systems.ScopeServices} instance runs its own {@link
+ * StpThread}, so running many drivers in one JVM means one selector thread per driver.  With a
+ * reactor, each driver's {@link StpConnectionListener} (and the {@link StpConnection} it accepts)
+ * is assigned to one of the reactor's threads in turn.
+ *
+ * Callbacks for all connections assigned to a thread run on that thread, so connection handlers
+ * must not block.
+ */
+public class StpReactor {
+
+  private static final Logger logger = Logger.getLogger(StpReactor.class.getName());
+  private static StpReactor shared;
+
+  private final ReactorThread[] threads;
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * Starts a new reactor.
+   *
+   * @param size the number of selector threads to use
+   */
+  public StpReactor(int size) {
+    checkArgument(size > 0, "A reactor needs at least one thread");
+
+    threads = new ReactorThread[size];
+    for (int i = 0; i < size; i++) {
+      threads[i] = new ReactorThread("stp-reactor-" + i);
+      threads[i].start();
+    }
+  }
+
+  /**
+   * Gets the reactor shared by all drivers in this JVM, starting it if necessary.  The size is
+   * only used by the first caller; later callers get the existing reactor.
+   *
+   * @param size the number of selector threads to use if the reactor is started
+   * @return the shared reactor
+   */
+  public static synchronized StpReactor getShared(int size) {
+    if (shared == null) {
+      logger.fine("Starting shared STP reactor with " + size + " threads");
+      shared = new StpReactor(size);
+    }
+    return shared;
+  }
+
+  /**
+   * Starts listening for a Scope connection on the given port, on one of the reactor's threads.
+   * Stop listening with {@link StpConnectionListener#stop()}.
+   *
+   * @param port          port to listen on
+   * @param handler       handler for the connection
+   * @param eventHandler  handler for events received on the connection
+   * @param manualConnect whether to output ready message with port number when starting
+   * @return the listener
+   * @throws IOException if unable to bind to the port
+   */
+  public StpConnectionListener listen(int port, IConnectionHandler handler,
+                                      EventHandler eventHandler, boolean manualConnect)
+      throws IOException {
+    SocketMonitor monitor = threads[(next.getAndIncrement() & Integer.MAX_VALUE) % threads.length]
+        .monitor;
+    return new StpConnectionListener(port, handler, eventHandler, manualConnect, monitor);
+  }
+
+  /**
+   * Stops all of the reactor's threads.  Connections still registered with the reactor will no
+   * longer be serviced.
+   */
+  public void shutdown() {
+    for (ReactorThread thread : threads) {
+      thread.shutdown();
+    }
+
+    synchronized (StpReactor.class) {
+      if (shared == this) {
+        shared = null;
+      }
+    }
+  }
+
+  public int getSize() {
+    return threads.length;
+  }
+
+  private static class ReactorThread extends Thread {
+
+    private final SocketMonitor monitor = new SocketMonitor();
+    private volatile boolean cancelled;
+
+    public ReactorThread(String name) {
+      super(name);
+      setDaemon(true);
+    }
+
+    public void shutdown() {
+      cancelled = true;
+      monitor.stop();
+    }
+
+    @Override
+    public void run() {
+      logger.finer("Started " + getName());
+      while (!cancelled) {
+        try {
+          monitor.poll(OperaIntervals.RESPONSE_TIMEOUT.getMs());
+        } catch (RuntimeException e) {
+          // One misbehaving connection must not take down the others sharing this thread
+          logger.log(Level.WARNING, "Unexpected exception in " + getName(), e);
+        }
+      }
+      logger.finer("Stopping " + getName());
+    }
+
+  }
+
+}
@@ -21,13 +21,18 @@ import com.opera.core.systems.common.io.Closeables;
 import java.io.IOException;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -36,19 +41,22 @@ import java.util.logging.Logger;
  * or {@link SocketListener#canRead(java.nio.channels.SelectableChannel)} events when such events
  * are detected by {@link #poll()}.
  *
+ * {@link #add}, {@link #modify} and {@link #remove} may be called from any thread.  Changes are
+ * merged per channel and handed to the selector thread through a lock-free queue; the selector is
+ * only woken up when a channel gets its first pending change, and a {@link #modify} asking for the
+ * interest set the channel already has is dropped without waking it at all.  {@link #poll} must
+ * only be called from a single thread.
+ *
  * @author Jan Vidar Krey <janv@opera.com>
  */
 public class SocketMonitor {
 
   private final Logger logger = Logger.getLogger(getClass().getName());
-  private final ReentrantLock lock = new ReentrantLock();
-  private final List<SelectorChangeRequest> changes = new LinkedList<SelectorChangeRequest>();
+  private final ConcurrentMap<SelectableChannel, Registration> registrations =
+      new ConcurrentHashMap<SelectableChannel, Registration>();
+  private final Queue<Registration> changes = new ConcurrentLinkedQueue<Registration>();
   private Selector selector;
 
-  private enum Operation {
-    ADD, MODIFY, REMOVE
-  }
-
   public SocketMonitor() {
     try {
       selector = SelectorProvider.provider().openSelector();
@@ -60,26 +68,39 @@ public class SocketMonitor {
   public boolean add(SelectableChannel channel, SocketListener listener, int selectMask) {
     logger.finest(String.format("Add channel: %s, mask=%s", channel, debugMask(selectMask)));
 
-    synchronized (changes) {
-      changes.add(new SelectorChangeRequest(channel, Operation.ADD, selectMask, listener));
-      selector.wakeup();
+    Registration registration = new Registration(channel, listener);
+    Registration existing = registrations.putIfAbsent(channel, registration);
+    if (existing != null) {
+      registration = existing;
+      registration.listener = listener;
     }
 
+    registration.requestedMask.set(selectMask);
+    schedule(registration);
     return true;
   }
 
   public boolean modify(SelectableChannel channel, SocketListener listener, int selectMask) {
-    logger.finest(String.format("Modify channel: %s, mask=%s", channel, debugMask(selectMask)));
-
     if (channel == null) {
       return false;
     }
 
-    synchronized (changes) {
-      changes.add(new SelectorChangeRequest(channel, Operation.MODIFY, selectMask, listener));
-      selector.wakeup();
+    Registration registration = registrations.get(channel);
+    if (registration == null) {
+      return false;
+    }
+
+    registration.listener = listener;
+    registration.requestedMask.set(selectMask);
+
+    // The selector thread publishes interestOps before looking at requestedMask, so if it is
+    // changing the interest set right now it will pick up our request by itself.
+    if (registration.interestOps == selectMask) {
+      return true;
     }
 
+    logger.finest(String.format("Modify channel: %s, mask=%s", channel, debugMask(selectMask)));
+    schedule(registration);
     return true;
   }
 
@@ -90,9 +111,10 @@ public class SocketMonitor {
       return;
     }
 
-    synchronized (changes) {
-      changes.add(new SelectorChangeRequest(channel, Operation.REMOVE));
-      selector.wakeup();
+    Registration registration = registrations.remove(channel);
+    if (registration != null) {
+      registration.removed = true;
+      schedule(registration);
     }
   }
 
@@ -105,84 +127,79 @@ public class SocketMonitor {
   }
 
   public boolean poll(long ms) {
-    boolean ok = pollSockets(ms);
     applyChanges();
-    return ok;
+    return pollSockets(ms);
   }
 
-  private boolean pollSockets(long ms) {
-    if (selector.keys().isEmpty()) {
-      return true;
+  private void schedule(Registration registration) {
+    if (registration.queued.compareAndSet(false, true)) {
+      changes.offer(registration);
+      selector.wakeup();
     }
+  }
 
-    lock.lock();
+  private boolean pollSockets(long ms) {
     try {
-      synchronized (selector) {
-        selector.select(ms);
-      }
+      selector.select(ms);
     } catch (IOException e) {
       e.printStackTrace();
       return false;
-    } finally {
-      lock.unlock();
+    } catch (ClosedSelectorException e) {
+      return false;
     }
 
-    lock.lock();
-    try {
-      for (SelectionKey key : selector.selectedKeys()) {
-        try {
-          processSelectionKey(key);
-        } catch (CancelledKeyException cke) {
-          cke.printStackTrace();
-        } catch (IOException e) {
-          // what are you doing with the channel variable here?
-          //SelectableChannel channel = key.channel();
-          e.printStackTrace();
-          key.cancel();
-        }
+    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+    while (keys.hasNext()) {
+      SelectionKey key = keys.next();
+      keys.remove();
+
+      try {
+        processSelectionKey(key);
+      } catch (CancelledKeyException cke) {
+        cke.printStackTrace();
+      } catch (IOException e) {
+        e.printStackTrace();
+        key.cancel();
       }
-    } finally {
-      lock.unlock();
     }
 
     return true;
   }
 
   private void applyChanges() {
-    synchronized (changes) {
-      if (changes.isEmpty()) {
-        return;
-      }
-
-      for (SelectorChangeRequest request : changes) {
-        try {
-          request.dump();
-          switch (request.operation) {
-            case ADD:
-              try {
-                request.channel.register(selector, request.mask, request.listener);
-              } catch (ClosedChannelException e) {
-                e.printStackTrace();
-              }
-              break;
-            case MODIFY:
-              SelectionKey key = request.channel.keyFor(selector);
-              if (key != null) {
-                key.interestOps(request.mask);
-              }
-              break;
-            case REMOVE:
-              SelectionKey selKey = request.channel.keyFor(selector);
-              if (selKey != null) {
-                selKey.cancel();
-              }
-              break;
+    Registration registration;
+    while ((registration = changes.poll()) != null) {
+      // Clear the flag before reading the request, so a change made from now on is queued again
+      registration.queued.set(false);
+
+      try {
+        if (registration.removed) {
+          logger.finest("Removing channel " + registration.channel);
+          if (registration.key != null) {
+            registration.key.cancel();
           }
-        } catch (CancelledKeyException e) {
-          logger.finest("Key was cancelled - ignoring...");
+          continue;
+        }
+
+        int mask = registration.requestedMask.getAndSet(-1);
+        if (mask == -1) {
+          continue;
+        }
+
+        logger.finest(String.format("Applying mask %s to channel %s",
+                                    debugMask(mask), registration.channel));
+
+        if (registration.key == null) {
+          registration.key = registration.channel.register(selector, mask, registration);
+        } else if (registration.key.isValid()) {
+          registration.key.interestOps(mask);
         }
+        registration.interestOps = mask;
+      } catch (ClosedChannelException e) {
+        e.printStackTrace();
+      } catch (CancelledKeyException e) {
+        logger.finest("Key was cancelled - ignoring...");
       }
-      changes.clear();
     }
   }
 
@@ -193,7 +210,8 @@ public class SocketMonitor {
       return;
     }
 
-    SocketListener listener = (SocketListener) key.attachment();
+    Registration registration = (Registration) key.attachment();
+    SocketListener listener = registration.listener;
 
     int currentMask = key.interestOps();
     int triggerMask = key.readyOps();
@@ -219,15 +237,26 @@ public class SocketMonitor {
     int notTriggered = (currentMask & ~triggerMask);
     wantedMask |= notTriggered;
 
+    if (!key.isValid()) {
+      return;
+    }
+
     // Update the selection mask, if it now differs
-    if (wantedMask != currentMask) {
-      if (wantedMask != 0) {
-        if (key.isValid()) {
-          key.interestOps(wantedMask);
-        }
-      } else {
-        key.cancel();
-      }
+    if (wantedMask == 0) {
+      key.cancel();
+      registrations.remove(channel, registration);
+      return;
+    } else if (wantedMask != currentMask) {
+      key.interestOps(wantedMask);
+      registration.interestOps = wantedMask;
+    }
+
+    // A modify() which raced with the update above may have been skipped because it still saw the
+    // old interest set; apply it now.
+    int requested = registration.requestedMask.getAndSet(-1);
+    if (requested != -1 && requested != wantedMask) {
+      key.interestOps(requested);
+      registration.interestOps = requested;
     }
   }
 
@@ -255,30 +284,33 @@ public class SocketMonitor {
     return builder.toString();
   }
 
-  private class SelectorChangeRequest {
+  /**
+   * The monitor's state for a single channel.  Changes requested from other threads are merged
+   * into {@link #requestedMask}, so however many requests are made before the selector thread gets
+   * to them, they are applied as one.
+   */
+  private static class Registration {
 
-    protected final SelectableChannel channel;
-    protected final Operation operation;
-    protected final int mask;
-    protected final SocketListener listener;
+    private final SelectableChannel channel;
+    private volatile SocketListener listener;
 
-    public SelectorChangeRequest(SelectableChannel channel, Operation operation) {
-      this(channel, operation, 0, null);
-    }
+    // Latest interest set asked for and not yet applied, or -1
+    private final AtomicInteger requestedMask = new AtomicInteger(-1);
 
-    public SelectorChangeRequest(SelectableChannel channel, Operation operation,
-                                 int mask, SocketListener listener) {
+    // Interest set as last applied by the selector thread, or -1 before registration
+    private volatile int interestOps = -1;
+
+    private final AtomicBoolean queued = new AtomicBoolean();
+    private volatile boolean removed;
+
+    // Only accessed from the selector thread
+    private SelectionKey key;
+
+    public Registration(SelectableChannel channel, SocketListener listener) {
       this.channel = channel;
-      this.operation = operation;
-      this.mask = mask;
       this.listener = listener;
     }
 
-    public void dump() {
-      logger.finest(String.format("SelectorChangeRequest: %s socket=%s, mask=%d",
-                                  operation, channel, mask));
-    }
-
   }
 
 }
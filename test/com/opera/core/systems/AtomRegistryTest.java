@@ -0,0 +1,88 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.scope.AtomRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AtomRegistryTest {
+
+  private AtomRegistry registry;
+
+  @Before
+  public void beforeEach() {
+    registry = new AtomRegistry();
+  }
+
+  @Test
+  public void atomIsOnlyInstalledOnce() {
+    assertTrue(registry.markInstalled(1, OperaAtom.IS_DISPLAYED));
+    assertFalse(registry.markInstalled(1, OperaAtom.IS_DISPLAYED));
+    assertTrue(registry.isInstalled(1, OperaAtom.IS_DISPLAYED));
+  }
+
+  @Test
+  public void runtimesAreTrackedSeparately() {
+    registry.markInstalled(1, OperaAtom.IS_DISPLAYED);
+    assertFalse(registry.isInstalled(2, OperaAtom.IS_DISPLAYED));
+    assertTrue(registry.markInstalled(2, OperaAtom.IS_DISPLAYED));
+  }
+
+  @Test
+  public void invalidateForgetsRuntime() {
+    registry.markInstalled(1, OperaAtom.IS_DISPLAYED);
+    registry.invalidate(1);
+    assertFalse(registry.isInstalled(1, OperaAtom.IS_DISPLAYED));
+    assertTrue(registry.markInstalled(1, OperaAtom.IS_DISPLAYED));
+  }
+
+  @Test
+  public void referencedByFindsAtomNames() {
+    String script = "return " + AtomRegistry.reference(OperaAtom.FIND_ELEMENTS) + "(x) && "
+                    + AtomRegistry.reference(OperaAtom.IS_SELECTED) + "(locator)";
+    assertEquals(EnumSet.of(OperaAtom.FIND_ELEMENTS, OperaAtom.IS_SELECTED),
+                 AtomRegistry.referencedBy(script));
+  }
+
+  @Test
+  public void referencedByIgnoresUnknownNames() {
+    assertTrue(AtomRegistry.referencedBy(AtomRegistry.GLOBAL + ".foo()").isEmpty());
+    assertTrue(AtomRegistry.referencedBy("return 1;").isEmpty());
+  }
+
+  @Test
+  public void presenceCheckIsNotAReference() {
+    String check = AtomRegistry.presenceCheck(EnumSet.of(OperaAtom.IS_ENABLED));
+    assertTrue(AtomRegistry.referencedBy(check).isEmpty());
+  }
+
+  @Test
+  public void installScriptDefinesAtoms() {
+    String script = AtomRegistry.installScript(EnumSet.of(OperaAtom.IS_ENABLED));
+    assertTrue(script.contains("a['IS_ENABLED']=" + OperaAtom.IS_ENABLED.getValue()));
+    assertTrue(script.endsWith("return true;"));
+  }
+
+}
@@ -23,6 +23,7 @@ import junit.framework.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.openqa.selenium.By;
+import org.openqa.selenium.InvalidSelectorException;
 import org.openqa.selenium.WebElement;
 import org.openqa.selenium.remote.RemoteWebElement;
 
@@ -197,4 +198,26 @@ public class FindElementsTest extends OperaDriverTestCase {
     Assert.assertNotNull(el);
   }
 
-}
\ No newline at end of file
+  @Test(expected = InvalidSelectorException.class)
+  public void testInvalidXPathThrowsInvalidSelector() {
+    driver.findElement(By.xpath("//div[@id='unclosed'"));
+  }
+
+  @Test(expected = InvalidSelectorException.class)
+  public void testInvalidXPathWithinElementThrowsInvalidSelector() {
+    driver.findElementByTagName("form").findElement(By.xpath(".//input[@name="));
+  }
+
+  @Test
+  public void testMissingAtomsAreReinstalled() {
+    driver.findElementById("call-to-action");
+
+    // The global itself may be impossible to delete, so remove the atom from it as well
+    driver.executeScript("var a = window.__webdriver_atoms; if (a) { delete a.FIND_ELEMENT; }"
+                         + "delete window.__webdriver_atoms;");
+
+    WebElement el = driver.findElementById("call-to-action");
+    assertEquals(el.getTagName().toLowerCase(), "p");
+  }
+
+}
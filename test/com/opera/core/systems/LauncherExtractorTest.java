@@ -0,0 +1,98 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import com.opera.core.systems.runner.launcher.LauncherExtractor;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LauncherExtractorTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File target;
+  private LauncherExtractor extractor;
+
+  @Before
+  public void beforeEach() throws IOException {
+    File bundled = folder.newFile("bundled");
+    Files.write("launcher", bundled, Charsets.UTF_8);
+
+    target = new File(folder.getRoot(), ".launcher/launcher");
+    extractor = new LauncherExtractor(bundled.toURI().toURL());
+  }
+
+  @Test
+  public void missingLauncherIsExtracted() throws IOException {
+    assertFalse(extractor.isCurrent(target));
+    extractor.extractTo(target);
+
+    assertEquals("launcher", Files.toString(target, Charsets.UTF_8));
+    assertTrue(extractor.isCurrent(target));
+  }
+
+  @Test
+  public void currentLauncherIsJudgedByManifestOnly() throws IOException {
+    extractor.extractTo(target);
+    long modified = target.lastModified();
+
+    // Same size and modification time, so the contents are not looked at
+    Files.write("LAUNCHER", target, Charsets.UTF_8);
+    assertTrue(target.setLastModified(modified));
+    extractor.extractTo(target);
+
+    assertEquals("LAUNCHER", Files.toString(target, Charsets.UTF_8));
+  }
+
+  @Test
+  public void changedLauncherIsReplaced() throws IOException {
+    extractor.extractTo(target);
+    Files.write("outdated launcher", target, Charsets.UTF_8);
+    assertFalse(extractor.isCurrent(target));
+
+    extractor.extractTo(target);
+    assertEquals("launcher", Files.toString(target, Charsets.UTF_8));
+  }
+
+  @Test
+  public void launcherWithoutManifestIsKeptIfUpToDate() throws IOException {
+    Files.createParentDirs(target);
+    Files.write("launcher", target, Charsets.UTF_8);
+    long modified = target.lastModified() - 10000;
+    assertTrue(target.setLastModified(modified));
+
+    extractor.extractTo(target);
+
+    assertEquals(modified, target.lastModified());
+    assertTrue(extractor.isCurrent(target));
+  }
+
+}
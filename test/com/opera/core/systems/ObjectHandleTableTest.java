@@ -0,0 +1,96 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.scope.ObjectHandleTable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ObjectHandleTableTest {
+
+  private ObjectHandleTable table;
+
+  @Before
+  public void beforeEach() {
+    table = new ObjectHandleTable();
+  }
+
+  @Test
+  public void releasedObjectsAreCollected() {
+    table.release(1);
+    table.release(2);
+    assertEquals(Arrays.asList(1, 2), table.collect(10));
+    assertTrue(table.collect(10).isEmpty());
+  }
+
+  @Test
+  public void collectIsLimitedToMax() {
+    for (int i = 0; i < 5; i++) {
+      table.release(i);
+    }
+
+    assertEquals(Arrays.asList(0, 1, 2), table.collect(3));
+    assertEquals(Arrays.asList(3, 4), table.collect(3));
+  }
+
+  @Test
+  public void trackingAgainCancelsRelease() {
+    Object owner = new Object();
+    table.release(1);
+    table.track(owner, 1);
+    assertTrue(table.collect(10).isEmpty());
+  }
+
+  @Test
+  public void clearForgetsObjects() {
+    table.release(1);
+    table.clear();
+    assertTrue(table.collect(10).isEmpty());
+  }
+
+  @Test
+  public void objectIsReleasedWhenLastOwnerIsCollected() throws InterruptedException {
+    Object kept = new Object();
+    table.track(kept, 1);
+    table.track(new Object(), 1);
+    table.track(new Object(), 2);
+
+    assertEquals(Arrays.asList(2), collectAfterGc());
+
+    kept = null;
+    assertEquals(Arrays.asList(1), collectAfterGc());
+  }
+
+  private List<Integer> collectAfterGc() throws InterruptedException {
+    List<Integer> collected = new ArrayList<Integer>();
+    for (int i = 0; i < 50 && collected.isEmpty(); i++) {
+      System.gc();
+      Thread.sleep(10);
+      collected.addAll(table.collect(10));
+    }
+    return collected;
+  }
+
+}
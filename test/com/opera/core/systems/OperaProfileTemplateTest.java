@@ -0,0 +1,110 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class OperaProfileTemplateTest {
+
+  @Rule
+  public TemporaryFolder baseDirectory = new TemporaryFolder();
+
+  private OperaProfileTemplate template;
+
+  @Before
+  public void beforeEach() throws IOException {
+    File base = baseDirectory.getRoot();
+    File cached = new File(base, "cache/file");
+    Files.createParentDirs(cached);
+    Files.write("data", cached, Charsets.UTF_8);
+
+    OperaProfile profile = new OperaProfile(base);
+    profile.preferences().set("Developer Tools", "Proxy Host", "1.2.3.4");
+    template = new OperaProfileTemplate(profile);
+  }
+
+  @After
+  public void tearDown() {
+    template.cleanUp();
+  }
+
+  @Test
+  public void cloneHasContentsOfBase() throws IOException {
+    OperaProfile clone = template.newProfile();
+
+    assertNotSame(template.getDirectory(), clone.getDirectory());
+    assertEquals("data",
+                 Files.toString(new File(clone.getDirectory(), "cache/file"), Charsets.UTF_8));
+    assertEquals("1.2.3.4", clone.preferences().get("Developer Tools", "Proxy Host").getValue());
+
+    clone.cleanUp();
+  }
+
+  @Test
+  public void changingCloneDoesNotChangeBase() throws IOException {
+    OperaProfile clone = template.newProfile();
+    clone.preferences().set("Developer Tools", "Proxy Host", "4.3.2.1");
+    Files.write("changed", new File(clone.getDirectory(), "cache/file"), Charsets.UTF_8);
+
+    OperaProfile other = template.newProfile();
+    assertEquals("1.2.3.4", other.preferences().get("Developer Tools", "Proxy Host").getValue());
+    assertEquals("data",
+                 Files.toString(new File(template.getDirectory(), "cache/file"), Charsets.UTF_8));
+
+    clone.cleanUp();
+    other.cleanUp();
+  }
+
+  @Test
+  public void directoryIsRecycled() throws InterruptedException {
+    OperaProfile clone = template.newProfile();
+    File directory = clone.getDirectory();
+    new File(directory, "generated-by-opera").mkdir();
+    clone.cleanUp();
+
+    OperaProfile next = null;
+    for (int i = 0; i < 100; i++) {
+      Thread.sleep(10);
+      next = template.newProfile();
+      if (next.getDirectory().equals(directory)) {
+        break;
+      }
+      next.cleanUp();
+    }
+
+    assertEquals(directory, next.getDirectory());
+    assertFalse(new File(directory, "generated-by-opera").exists());
+    assertTrue(new File(directory, "cache/file").exists());
+    next.cleanUp();
+  }
+
+}
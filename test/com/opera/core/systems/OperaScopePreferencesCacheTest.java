@@ -0,0 +1,162 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.common.collect.ImmutableList;
+
+import com.opera.core.systems.preferences.OperaScopePreferences;
+import com.opera.core.systems.preferences.OperaScopePreferences.ScopePreference;
+import com.opera.core.systems.scope.protos.PrefsProtos.GetPrefArg.Mode;
+import com.opera.core.systems.scope.protos.PrefsProtos.Pref;
+import com.opera.core.systems.scope.protos.PrefsProtos.SetPrefArg;
+import com.opera.core.systems.scope.services.IPrefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OperaScopePreferencesCacheTest {
+
+  private FakePrefs service;
+  private OperaScopePreferences preferences;
+
+  @Before
+  public void beforeEach() {
+    service = new FakePrefs();
+    preferences = new OperaScopePreferences(service);
+  }
+
+  @Test
+  public void nothingIsFetchedUpFront() {
+    assertTrue(service.listed.isEmpty());
+  }
+
+  @Test
+  public void onlyTheSectionAskedForIsFetched() {
+    assertEquals("127.0.0.1", preferences.get("Developer Tools", "Proxy Host").getValue());
+    assertEquals(1234, preferences.get("Developer Tools", "Proxy Port").getValue());
+    assertEquals(ImmutableList.of("Developer Tools"), service.listed);
+  }
+
+  @Test
+  public void sectionInDifferentCaseFallsBackToFetchingAll() {
+    assertEquals("127.0.0.1", preferences.get("DEVELOPER TOOLS", "PROXY HOST").getValue());
+    assertEquals(ImmutableList.of("DEVELOPER TOOLS", "*"), service.listed);
+  }
+
+  @Test
+  public void unknownPreferenceIsNull() {
+    assertNull(preferences.get("Developer Tools", "No Such Key"));
+  }
+
+  @Test
+  public void sizeFetchesAll() {
+    preferences.get("User Prefs", "Show Menu");
+    assertEquals(3, preferences.size());
+  }
+
+  @Test
+  public void setIsWrittenImmediately() {
+    preferences.set("Developer Tools", "Proxy Port", 4321);
+    assertEquals(ImmutableList.of("Developer Tools/Proxy Port=4321"), service.written);
+  }
+
+  @Test
+  public void batchedChangesAreCoalesced() {
+    preferences.startBatch();
+    preferences.set("Developer Tools", "Proxy Port", 4321);
+    preferences.set("User Prefs", "Show Menu", true);
+    preferences.set("Developer Tools", "Proxy Port", 5432);
+    assertTrue(service.written.isEmpty());
+    assertEquals(5432, preferences.get("Developer Tools", "Proxy Port").getValue());
+
+    preferences.finishBatch();
+    assertEquals(ImmutableList.of("Developer Tools/Proxy Port=5432", "User Prefs/Show Menu=1"),
+                 service.written);
+    assertEquals(1, service.batches);
+  }
+
+  @Test
+  public void restoreOnlyWritesChangedPreferences() {
+    preferences.get("User Prefs", "Show Menu");
+    Map<ScopePreference, String> snapshot = preferences.snapshot();
+
+    preferences.set("User Prefs", "Show Menu", true);
+    preferences.set("Developer Tools", "Proxy Port", 4321);
+    service.written.clear();
+
+    preferences.restore(snapshot);
+    assertEquals(ImmutableList.of("User Prefs/Show Menu=0", "Developer Tools/Proxy Port=1234"),
+                 service.written);
+  }
+
+  private static class FakePrefs implements IPrefs {
+
+    private final List<Pref> prefs = ImmutableList.of(
+        pref("Developer Tools", "Proxy Host", "127.0.0.1", Pref.Type.STRING),
+        pref("Developer Tools", "Proxy Port", "1234", Pref.Type.INTEGER),
+        pref("User Prefs", "Show Menu", "0", Pref.Type.BOOLEAN));
+
+    public final List<String> listed = new ArrayList<String>();
+    public final List<String> written = new ArrayList<String>();
+    public int batches = 0;
+
+    public void init() {
+    }
+
+    public String getPref(String section, String key, Mode mode) {
+      throw new UnsupportedOperationException();
+    }
+
+    public List<Pref> listPrefs(Boolean sort, String section) {
+      listed.add(section == null ? "*" : section);
+
+      List<Pref> result = new ArrayList<Pref>();
+      for (Pref pref : prefs) {
+        if (section == null || pref.getSection().equals(section)) {
+          result.add(pref);
+        }
+      }
+      return result;
+    }
+
+    public void setPrefs(String section, String key, String value) {
+      written.add(section + "/" + key + "=" + value);
+    }
+
+    public void setPrefs(List<SetPrefArg> prefs) {
+      batches++;
+      for (SetPrefArg pref : prefs) {
+        setPrefs(pref.getSection(), pref.getKey(), pref.getValue());
+      }
+    }
+
+    private static Pref pref(String section, String key, String value, Pref.Type type) {
+      return Pref.newBuilder().setSection(section).setKey(key).setValue(value).setType(type)
+          .build();
+    }
+
+  }
+
+}
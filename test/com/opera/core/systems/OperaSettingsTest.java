@@ -277,6 +277,17 @@ public class OperaSettingsTest extends OperaDriverTestCase {
     assertTrue(settings.hasDetach());
   }
 
+  @Test
+  public void directTypingIsFalse() {
+    assertFalse(settings.hasDirectTyping());
+  }
+
+  @Test
+  public void directTypingCanBeSet() {
+    settings.setDirectTyping(true);
+    assertTrue(settings.hasDirectTyping());
+  }
+
   @Test
   public void productIsDesktop() {
     assertEquals(DESKTOP, settings.getProduct());
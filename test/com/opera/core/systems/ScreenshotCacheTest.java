@@ -0,0 +1,80 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.protobuf.ByteString;
+
+import com.opera.core.systems.scope.ScreenshotCache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScreenshotCacheTest {
+
+  private ScreenshotCache cache;
+
+  @Before
+  public void beforeEach() {
+    cache = new ScreenshotCache(2, 10);
+  }
+
+  @Test
+  public void cachedScreenshotIsReturned() {
+    ByteString png = ByteString.copyFrom(new byte[] {1, 2, 3});
+    cache.put("a", png);
+    assertEquals(png, cache.get("a"));
+    assertEquals(Arrays.asList("a"), cache.hashes());
+  }
+
+  @Test
+  public void leastRecentlyUsedIsEvictedWhenFull() {
+    cache.put("a", ByteString.copyFrom(new byte[1]));
+    cache.put("b", ByteString.copyFrom(new byte[1]));
+    cache.get("a");
+    cache.put("c", ByteString.copyFrom(new byte[1]));
+    assertNull(cache.get("b"));
+    assertEquals(Arrays.asList("a", "c"), cache.hashes());
+  }
+
+  @Test
+  public void screenshotsAreEvictedWhenTooLarge() {
+    cache.put("a", ByteString.copyFrom(new byte[6]));
+    cache.put("b", ByteString.copyFrom(new byte[6]));
+    assertNull(cache.get("a"));
+    assertEquals(Arrays.asList("b"), cache.hashes());
+  }
+
+  @Test
+  public void screenshotLargerThanCacheIsNotCached() {
+    cache.put("a", ByteString.copyFrom(new byte[11]));
+    assertTrue(cache.hashes().isEmpty());
+  }
+
+  @Test
+  public void clearForgetsScreenshots() {
+    cache.put("a", ByteString.copyFrom(new byte[1]));
+    cache.clear();
+    assertNull(cache.get("a"));
+  }
+
+}
@@ -0,0 +1,92 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.model.Canvas;
+import com.opera.core.systems.model.ScreenShotReply;
+import com.opera.core.systems.model.ScreenshotDiff;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScreenshotDiffTest {
+
+  private final Canvas area = new Canvas(10, 20, 25, 15);
+
+  @Test
+  public void areaIsTiledRowByRowAndClipped() {
+    List<Canvas> tiles = ScreenshotDiff.tile(area, 10);
+
+    assertEquals(6, tiles.size());
+    assertEquals(new Canvas(10, 20, 10, 10), tiles.get(0));
+    assertEquals(new Canvas(30, 20, 5, 10), tiles.get(2));
+    assertEquals(new Canvas(30, 30, 5, 5), tiles.get(5));
+  }
+
+  @Test
+  public void allTilesChangedWithoutBaseline() {
+    ScreenshotDiff diff = diff(null, "a", "b", "c", "d", "e", "f");
+
+    assertTrue(diff.hasChanges());
+    assertEquals(6, diff.getChangedTiles().size());
+    assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f"), diff.getHashes());
+  }
+
+  @Test
+  public void onlyChangedTilesAreReported() {
+    ScreenshotDiff baseline = diff(null, "a", "b", "c", "d", "e", "f");
+    ScreenshotDiff diff = diff(baseline, "a", "b", "x", "d", "e", "f");
+
+    assertEquals(1, diff.getChangedTiles().size());
+    assertEquals("x", diff.getChangedTiles().get(0).getMd5());
+    assertEquals(new Canvas(20, 0, 5, 10), diff.getChangedTiles().get(0).getArea());
+  }
+
+  @Test
+  public void unchangedScreenshotHasNoChanges() {
+    ScreenshotDiff baseline = diff(null, "a", "b", "c", "d", "e", "f");
+    assertFalse(diff(baseline, "a", "b", "c", "d", "e", "f").hasChanges());
+  }
+
+  @Test
+  public void baselineOfOtherSizeIsNotUsed() {
+    ScreenshotDiff baseline = diff(null, "a", "b", "c", "d", "e", "f");
+    List<String> hashes = ScreenshotDiff.getBaselineHashes(baseline, new Canvas(0, 0, 30, 15), 10);
+
+    assertEquals(6, hashes.size());
+    assertNull(hashes.get(0));
+  }
+
+  private ScreenshotDiff diff(ScreenshotDiff baseline, String... md5s) {
+    List<ScreenShotReply> replies = new ArrayList<ScreenShotReply>();
+    for (String md5 : md5s) {
+      replies.add(new ScreenShotReply(md5));
+    }
+
+    return new ScreenshotDiff(area, 10, ScreenshotDiff.tile(area, 10),
+                              ScreenshotDiff.getBaselineHashes(baseline, area, 10), replies);
+  }
+
+}
@@ -0,0 +1,154 @@
+/*
+Copyright 2012 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.protobuf.ByteString;
+
+import com.opera.core.systems.scope.exceptions.CommunicationException;
+import com.opera.core.systems.scope.exceptions.ResponseNotReceivedException;
+import com.opera.core.systems.scope.protos.EcmascriptProtos.ReadyStateChange;
+import com.opera.core.systems.scope.protos.UmsProtos.Response;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WaitStateTest {
+
+  private WaitState waitState;
+
+  @Before
+  public void beforeEach() {
+    waitState = new WaitState();
+  }
+
+  private static Response response(int tag) {
+    return Response.newBuilder().setService("ecmascript").setCommandID(1).setFormat(0)
+        .setTag(tag).setPayload(ByteString.EMPTY).build();
+  }
+
+  @Test
+  public void responseReceivedBeforeWaitIsDelivered() {
+    Response response = response(1);
+    waitState.expectResponse(1);
+    waitState.onResponse(1, response);
+    assertSame(response, waitState.waitFor(1, 100));
+  }
+
+  @Test
+  public void errorIsDeliveredAsNull() {
+    waitState.expectResponse(2);
+    waitState.onError(2);
+    assertNull(waitState.waitFor(2, 100));
+  }
+
+  @Test(expected = ResponseNotReceivedException.class)
+  public void responseForOtherTagDoesNotWakeWaiter() {
+    waitState.expectResponse(3);
+    waitState.onResponse(4, response(4));
+    waitState.waitFor(3, 50);
+  }
+
+  @Test(expected = CommunicationException.class)
+  public void disconnectFailsWaiter() {
+    waitState.onDisconnected();
+    waitState.waitFor(5, 1000);
+  }
+
+  @Test
+  public void capturedIdleEventIsRetained() {
+    waitState.captureOperaIdle();
+    waitState.onOperaIdle();
+    waitState.waitForOperaIdle(100);
+  }
+
+  @Test(expected = ResponseNotReceivedException.class)
+  public void uncapturedIdleEventIsDiscarded() {
+    waitState.onOperaIdle();
+    waitState.waitForOperaIdle(50);
+  }
+
+  @Test
+  public void windowLoadedForOtherWindowIsSkipped() {
+    waitState.onWindowLoaded(1);
+    waitState.onWindowLoaded(2);
+    waitState.waitForWindowLoaded(2, 100);
+  }
+
+  @Test(expected = CommunicationException.class)
+  public void windowClosedWhileWaitingForLoad() {
+    waitState.onWindowClosed(3);
+    waitState.waitForWindowLoaded(3, 100);
+  }
+
+  @Test
+  public void activitySinceLastLookIsNoticed() {
+    long since = waitState.getActivity();
+    waitState.onReadyStateChange(1, ReadyStateChange.State.DOM_CONTENT_LOADED);
+    assertTrue(waitState.waitForActivity(since, 100));
+  }
+
+  @Test
+  public void loadOfFirstCreatedDocumentIsAwaited() {
+    waitState.captureLoads();
+    waitState.onReadyStateChange(7, ReadyStateChange.State.DOM_ENVIRONMENT_CREATED);
+    waitState.onReadyStateChange(8, ReadyStateChange.State.DOM_ENVIRONMENT_CREATED);
+    waitState.onReadyStateChange(8, ReadyStateChange.State.DOM_CONTENT_LOADED);
+    waitState.onReadyStateChange(7, ReadyStateChange.State.DOM_CONTENT_LOADED);
+    assertTrue(waitState.waitForLoad(10, 100));
+  }
+
+  @Test
+  public void noLoadStartedReturnsFalse() {
+    waitState.onReadyStateChange(7, ReadyStateChange.State.DOM_ENVIRONMENT_CREATED);
+    waitState.captureLoads();
+    waitState.onReadyStateChange(7, ReadyStateChange.State.DOM_CONTENT_LOADED);
+    assertFalse(waitState.waitForLoad(10, 100));
+  }
+
+  @Test
+  public void unfinishedLoadReturnsFalse() {
+    waitState.captureLoads();
+    waitState.onReadyStateChange(7, ReadyStateChange.State.DOM_ENVIRONMENT_CREATED);
+    waitState.onReadyStateChange(8, ReadyStateChange.State.DOM_CONTENT_LOADED);
+    assertFalse(waitState.waitForLoad(10, 50));
+  }
+
+  @Test
+  public void noActivityTimesOut() {
+    waitState.onOperaIdle();
+    assertFalse(waitState.waitForActivity(waitState.getActivity(), 20));
+  }
+
+  @Test
+  public void callbackOfOtherScriptIsIgnored() {
+    waitState.onScriptCallback("1");
+    waitState.onScriptCallback("2");
+    waitState.waitForScriptCallback("2", 100);
+  }
+
+  @Test(expected = ResponseNotReceivedException.class)
+  public void scriptCallbackTimesOut() {
+    waitState.onScriptCallback("1");
+    waitState.waitForScriptCallback("2", 20);
+  }
+
+}